@@ -0,0 +1,273 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.models.partitions.ClusterPartitionParser;
+import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Reshard throughput on a throwaway cluster of local {@code redis-server} processes: starts the nodes, assigns all
+ * slots to the first {@code --nodes} of them, loads test data, then reshards onto all nodes while client traffic
+ * runs and reports keys/s, bytes/s and the client p99 latency seen during the migration. Nodes and their files are
+ * removed afterwards.
+ */
+public class EndToEndBenchmark {
+
+    private static final long STARTUP_TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("rsb", "redisServer", true, "redis-server binary to start nodes with (default redis-server)");
+        options.addOption("n", "nodes", true, "Masters holding the data before the reshard (default 3)");
+        options.addOption("an", "addNodes", true, "Empty masters added by the reshard (default 1)");
+        options.addOption("bp", "basePort", true, "Port of the first node, the others follow (default 30001)");
+        options.addOption("p", "planner", true, "contiguous or minimal (default contiguous)");
+        options.addOption("k", "keys", true, "Keys to load (default 1000000)");
+        options.addOption("vs", "valueSize", true, "Value size in bytes: N, MIN-MAX or MIN-MAX:log (default 100)");
+        options.addOption("dt", "dataType", true, "Key type: string, hash, set or zset (default string)");
+        options.addOption("m", "members", true, "Fields or members of each hash, set or zset (default 10)");
+        options.addOption("lk", "largeKeys", true, "Large string keys loaded on top of the test data (default 0)");
+        options.addOption("lks", "largeKeySize", true, "Value size of each large key in bytes (default 10000000)");
+        options.addOption("mb", "migrationBatchSize", true, "Migration batch size (default 1000)");
+        options.addOption("mf", "migrationsInFlight", true, "MIGRATE calls in flight per slot (default 4)");
+        options.addOption("mp", "migrationParallelism", true, "Slots migrated at the same time (default 1)");
+        options.addOption("mpn", "migrationParallelismPerNode", true, "Slot migrations per node at the same time (default 1)");
+        options.addOption("mbb", "migrationBatchBytes", true, "Keep each MIGRATE call under this many bytes (default 0, samples MEMORY USAGE)");
+        options.addOption("mlk", "migrationLargeKeyBytes", true, "Migrate keys of at least this many bytes one by one (default 0)");
+        options.addOption("msm", "migrationSampleMemory", false, "Sample MEMORY USAGE of migrated keys to report bytes/s");
+        options.addOption("tops", "trafficOpsPerSecond", true, "Client ops/s sent during the reshard (default 1000, 0 to disable)");
+        options.addOption("trp", "trafficReadPercent", true, "Percent of reads in client traffic (default 80)");
+        options.addOption("h", "help", false, "Print this help");
+
+        int exitCode = 0;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption("help")) {
+                new HelpFormatter().printHelp("endToEndBenchmark", options);
+            } else {
+                run(commandLine);
+            }
+        } catch (ParseException e) {
+            System.err.println("Parsing failed. Reason: " + e.getMessage());
+            new HelpFormatter().printHelp("endToEndBenchmark", options);
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    private static void run(CommandLine commandLine) {
+        String redisServer = commandLine.getOptionValue("redisServer", "redis-server");
+        int initialNodeCount = Integer.parseInt(commandLine.getOptionValue("nodes", "3"));
+        int nodeCount = initialNodeCount + Integer.parseInt(commandLine.getOptionValue("addNodes", "1"));
+        int basePort = Integer.parseInt(commandLine.getOptionValue("basePort", "30001"));
+        String planner = commandLine.getOptionValue("planner", "contiguous");
+        WorkloadSettings workloadSettings = new WorkloadSettings(
+                0,
+                Long.parseLong(commandLine.getOptionValue("keys", "1000000")),
+                ValueSizeDistribution.parse(commandLine.getOptionValue("valueSize", "100")),
+                commandLine.getOptionValue("dataType", "string"),
+                Integer.parseInt(commandLine.getOptionValue("members", "10")),
+                0,
+                0,
+                4,
+                1000);
+        int largeKeys = Integer.parseInt(commandLine.getOptionValue("largeKeys", "0"));
+        int largeKeySize = Integer.parseInt(commandLine.getOptionValue("largeKeySize", "10000000"));
+        MigrationSettings migrationSettings = new MigrationSettings(
+                Integer.parseInt(commandLine.getOptionValue("migrationBatchSize", "1000")),
+                Integer.parseInt(commandLine.getOptionValue("migrationsInFlight", "4")),
+                Integer.parseInt(commandLine.getOptionValue("migrationParallelism", "1")),
+                Integer.parseInt(commandLine.getOptionValue("migrationParallelismPerNode", "1")),
+                0,
+                0,
+                Long.parseLong(commandLine.getOptionValue("migrationBatchBytes", "0")),
+                Long.parseLong(commandLine.getOptionValue("migrationLargeKeyBytes", "0")),
+                commandLine.hasOption("migrationSampleMemory"),
+                false);
+        ThrottleSettings throttleSettings = new ThrottleSettings(0, 0, 0, 0, 0, 0, 0, 1000);
+        long trafficOpsPerSecond = Long.parseLong(commandLine.getOptionValue("trafficOpsPerSecond", "1000"));
+        int trafficReadPercent = Integer.parseInt(commandLine.getOptionValue("trafficReadPercent", "80"));
+
+        RedisClient bootstrapClient = RedisClient.create();
+        Path directory = createDirectory();
+        List<Process> processes = new ArrayList<>();
+        try {
+            System.out.println("Starting " + nodeCount + " nodes from port " + basePort + " in " + directory);
+            List<RedisCommands<String, String>> nodes = new ArrayList<>();
+            for (int port = basePort; port < basePort + nodeCount; port++) {
+                processes.add(startNode(redisServer, port, directory));
+            }
+            for (int port = basePort; port < basePort + nodeCount; port++) {
+                nodes.add(awaitNode(bootstrapClient, port));
+            }
+            nodes.forEach(node -> node.clusterMeet("127.0.0.1", basePort));
+            await("all nodes to meet", () -> nodes.stream().allMatch(node -> node.clusterNodes().lines().count() == nodeCount));
+            List<String> nodeIds = nodes.stream().map(RedisCommands::clusterMyId).collect(toList());
+
+            try (ConnectionManager connectionManager = new ConnectionManager(RedisURI.create("127.0.0.1", basePort))) {
+                connectionManager.register(ClusterPartitionParser.parse(nodes.get(0).clusterNodes()));
+                Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands = connectionManager.syncAll(nodeIds);
+                ReshardCli.emptyClusterSlotAssignment(
+                        ReshardCli.createDesiredSlots(nodeIds.subList(0, initialNodeCount)), nodeIdToClusterCommands, true);
+                await("cluster state ok", () -> nodes.stream().allMatch(node -> node.clusterInfo().contains("cluster_state:ok")));
+
+                WorkloadGenerator workloadGenerator = new WorkloadGenerator(workloadSettings, connectionManager);
+                long loadStartNanos = System.nanoTime();
+                workloadGenerator.write();
+                byte[] largeValue = new byte[largeKeySize];
+                for (int i = 0; i < largeKeys; i++) {
+                    connectionManager.cluster().set(("large-key-" + i).getBytes(StandardCharsets.UTF_8), largeValue);
+                }
+                System.out.println("Loaded " + (workloadSettings.getKeysCount() + largeKeys) + " keys in "
+                        + MigrationMetrics.formatDuration(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - loadStartNanos)) + "\n");
+
+                Partitions clusterPartitions = ClusterPartitionParser.parse(connectionManager.cluster().clusterNodes());
+                List<RedisClusterNode> clusterMasterNodes = clusterPartitions.stream()
+                        .filter(clusterNode -> clusterNode.getRole().isMaster())
+                        .collect(toList());
+                SlotMap currentSlotMap = SlotMap.fromPartitions(clusterPartitions);
+                SlotCensus slotCensus = SlotCensus.scan(currentSlotMap, nodeIdToClusterCommands, false);
+                List<String> optimalNodeIds = ReshardCli.getOptimalNodeIds(
+                        connectionManager.cluster().clusterSlots(), clusterMasterNodes, Collections.emptyList());
+                SlotMap desiredSlotMap = "minimal".equals(planner)
+                        ? ReshardPlanner.planMinimalMovement(currentSlotMap, optimalNodeIds, slotCensus.getSlotKeyCounts())
+                        : ReshardCli.createDesiredSlots(optimalNodeIds);
+
+                MigrationMetrics migrationMetrics = new MigrationMetrics();
+                String clientLatency = "n/a";
+                long clientErrors = 0;
+                long reshardStartNanos = System.nanoTime();
+                try (TrafficGenerator trafficGenerator = trafficOpsPerSecond > 0
+                        ? new TrafficGenerator(workloadGenerator, trafficOpsPerSecond, trafficReadPercent, connectionManager)
+                        : null) {
+                    ReshardCli.reshardSlots(connectionManager, clusterPartitions, currentSlotMap, desiredSlotMap,
+                            nodeIdToClusterCommands, migrationSettings, throttleSettings, null, slotCensus, null, migrationMetrics, 10, true);
+                    if (trafficGenerator != null) {
+                        clientLatency = trafficGenerator.getLatency().formatQuantile(0.99);
+                        clientErrors = trafficGenerator.getErrors();
+                    }
+                }
+                double seconds = Math.max((System.nanoTime() - reshardStartNanos) / 1e9, 0.001);
+
+                // Bytes are only known when MEMORY USAGE was sampled
+                boolean bytesKnown = migrationSettings.isSampleMemoryUsage();
+                System.out.printf("Benchmark: %d -> %d nodes, %d slots, %d keys, %s bytes moved in %.1fs%n",
+                        initialNodeCount, nodeCount, migrationMetrics.getDoneSlots(), migrationMetrics.getMovedKeys(),
+                        bytesKnown ? String.valueOf(migrationMetrics.getMovedBytes()) : "-", seconds);
+                System.out.printf("Benchmark: %d keys/s, %s bytes/s, client p99 %s, %d client errors%n",
+                        (long) (migrationMetrics.getMovedKeys() / seconds),
+                        bytesKnown ? String.valueOf((long) (migrationMetrics.getMovedBytes() / seconds)) : "-",
+                        clientLatency, clientErrors);
+            }
+        } finally {
+            bootstrapClient.shutdown();
+            processes.forEach(EndToEndBenchmark::stopNode);
+            deleteDirectory(directory);
+        }
+    }
+
+    private static Process startNode(String redisServer, int port, Path directory) {
+        try {
+            return new ProcessBuilder(
+                    redisServer,
+                    "--port", String.valueOf(port),
+                    "--cluster-enabled", "yes",
+                    "--cluster-config-file", "nodes-" + port + ".conf",
+                    "--save", "",
+                    "--appendonly", "no",
+                    "--dir", directory.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("redis-" + port + ".log").toFile())
+                    .start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start " + redisServer + " on port " + port, e);
+        }
+    }
+
+    private static RedisCommands<String, String> awaitNode(RedisClient redisClient, int port) {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                return redisClient.connect(RedisURI.create("127.0.0.1", port)).sync();
+            } catch (RedisConnectionException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Node on port " + port + " did not start", e);
+                }
+                sleep();
+            }
+        }
+    }
+
+    private static void await(String description, BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Timed out waiting for " + description);
+            }
+            sleep();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting the cluster", e);
+        }
+    }
+
+    private static void stopNode(Process process) {
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Path createDirectory() {
+        try {
+            return Files.createTempDirectory("blc-redis-reshard-benchmark");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(toList())) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+
+/**
+ * Planning cost for a cluster of {@code nodeCount} masters that has just grown by one node: the current assignment
+ * is the contiguous one of the other nodes, slot key counts are random but fixed per run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReshardPlannerBenchmark {
+
+    @Param({"3", "10", "30", "100"})
+    private int nodeCount;
+
+    private List<String> nodeIds;
+    private List<Object> clusterSlots;
+    private List<RedisClusterNode> clusterMasterNodes;
+    private SlotMap currentSlotMap;
+    private SlotMap desiredSlotMap;
+    private long[] slotKeyCounts;
+
+    @Setup
+    public void setUp() {
+        nodeIds = new ArrayList<>();
+        clusterMasterNodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            String nodeId = String.format("%040x", i);
+            nodeIds.add(nodeId);
+            RedisClusterNode clusterNode = new RedisClusterNode();
+            clusterNode.setNodeId(nodeId);
+            clusterMasterNodes.add(clusterNode);
+        }
+        currentSlotMap = ReshardCli.createDesiredSlots(nodeIds.subList(0, nodeCount - 1));
+        desiredSlotMap = ReshardCli.createDesiredSlots(nodeIds);
+
+        // CLUSTER SLOTS reply as Lettuce returns it: [from, to, [host, port, node id]] per range
+        clusterSlots = new ArrayList<>();
+        currentSlotMap.forEachRange((from, to, nodeId) -> clusterSlots.add(List.of(
+                (long) from,
+                (long) to,
+                List.of("127.0.0.1".getBytes(StandardCharsets.UTF_8), 6379L, nodeId.getBytes(StandardCharsets.UTF_8)))));
+        Collections.shuffle(clusterSlots, new Random(42));
+
+        SplittableRandom random = new SplittableRandom(42);
+        slotKeyCounts = new long[REDIS_SLOT_COUNT];
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            slotKeyCounts[slot] = random.nextLong(100, 10_000);
+        }
+    }
+
+    @Benchmark
+    public SlotMap createDesiredSlots() {
+        return ReshardCli.createDesiredSlots(nodeIds);
+    }
+
+    @Benchmark
+    public List<String> getOptimalNodeIds() {
+        return ReshardCli.getOptimalNodeIds(clusterSlots, clusterMasterNodes, Collections.emptyList());
+    }
+
+    @Benchmark
+    public List<ReshardAction> movesTo() {
+        return currentSlotMap.movesTo(desiredSlotMap);
+    }
+
+    @Benchmark
+    public SlotMap planMinimalMovement() {
+        return ReshardPlanner.planMinimalMovement(currentSlotMap, nodeIds, slotKeyCounts);
+    }
+
+    @Benchmark
+    public SlotMap planWeighted() {
+        return ReshardPlanner.planWeighted(currentSlotMap, nodeIds, slotKeyCounts);
+    }
+}
@@ -0,0 +1,145 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Owns every connection of a run. All clients share one set of event loops and thread pools, node connections are
+ * opened on first use (in parallel when several are asked for at once) and reused afterwards, and a connection
+ * whose node restarts reconnects on its own, queueing commands meanwhile.
+ */
+public class ConnectionManager implements AutoCloseable {
+
+    private final RedisURI seedUri;
+    private final ClientResources clientResources;
+    private final RedisClient redisClient;
+    private final RedisClusterClient redisClusterClient;
+    private final Map<String, RedisURI> nodeIdToUri = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<StatefulRedisConnection<byte[], byte[]>>> nodeIdToConnection = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<StatefulRedisConnection<byte[], byte[]>>> nodeIdToSampleConnection = new ConcurrentHashMap<>();
+    private RedisAdvancedClusterCommands<byte[], byte[]> clusterCommands;
+
+    public ConnectionManager(RedisURI seedUri) {
+        this.seedUri = seedUri;
+        this.clientResources = DefaultClientResources.create();
+        this.redisClient = RedisClient.create(clientResources);
+        this.redisClient.setOptions(ClientOptions.builder()
+                .autoReconnect(true)
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.ACCEPT_COMMANDS)
+                .build());
+        this.redisClusterClient = RedisClusterClient.create(clientResources, seedUri);
+        this.redisClusterClient.setOptions(ClusterClientOptions.builder()
+                .autoReconnect(true)
+                .build());
+    }
+
+    public synchronized RedisAdvancedClusterCommands<byte[], byte[]> cluster() {
+        if (clusterCommands == null) {
+            clusterCommands = redisClusterClient.connect(ByteArrayCodec.INSTANCE).sync();
+        }
+        return clusterCommands;
+    }
+
+    // A separate connection, e.g. for a worker that keeps its own pipeline full; closed by the caller
+    public StatefulRedisClusterConnection<byte[], byte[]> connectCluster() {
+        return redisClusterClient.connect(ByteArrayCodec.INSTANCE);
+    }
+
+    public void register(Collection<RedisClusterNode> clusterNodes) {
+        clusterNodes.forEach(clusterNode -> nodeIdToUri.put(clusterNode.getNodeId(), withSeedCredentials(clusterNode.getUri())));
+    }
+
+    public RedisCommands<byte[], byte[]> sync(String nodeId) {
+        return await(nodeId, nodeIdToConnection).sync();
+    }
+
+    public RedisAsyncCommands<byte[], byte[]> async(String nodeId) {
+        return await(nodeId, nodeIdToConnection).async();
+    }
+
+    public Map<String, RedisCommands<byte[], byte[]>> syncAll(Collection<String> nodeIds) {
+        nodeIds.forEach(nodeId -> connect(nodeId, nodeIdToConnection));
+        Map<String, RedisCommands<byte[], byte[]>> nodeIdToCommands = new LinkedHashMap<>();
+        nodeIds.forEach(nodeId -> nodeIdToCommands.put(nodeId, sync(nodeId)));
+        return nodeIdToCommands;
+    }
+
+    // A second connection per node for sampling (PING round trips, INFO), so samples are not queued behind the
+    // pipelined migration commands of the first one
+    public Map<String, RedisAsyncCommands<byte[], byte[]>> sampleAll(Collection<String> nodeIds) {
+        nodeIds.forEach(nodeId -> connect(nodeId, nodeIdToSampleConnection));
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToCommands = new LinkedHashMap<>();
+        nodeIds.forEach(nodeId -> nodeIdToCommands.put(nodeId, await(nodeId, nodeIdToSampleConnection).async()));
+        return nodeIdToCommands;
+    }
+
+    private CompletableFuture<StatefulRedisConnection<byte[], byte[]>> connect(
+            String nodeId,
+            Map<String, CompletableFuture<StatefulRedisConnection<byte[], byte[]>>> nodeIdToConnection) {
+        return nodeIdToConnection.computeIfAbsent(nodeId, ignored -> {
+            RedisURI uri = nodeIdToUri.get(nodeId);
+            if (uri == null) {
+                throw new IllegalArgumentException("Unknown node " + nodeId);
+            }
+            return redisClient.connectAsync(ByteArrayCodec.INSTANCE, uri).toCompletableFuture();
+        });
+    }
+
+    private StatefulRedisConnection<byte[], byte[]> await(
+            String nodeId,
+            Map<String, CompletableFuture<StatefulRedisConnection<byte[], byte[]>>> nodeIdToConnection) {
+        CompletableFuture<StatefulRedisConnection<byte[], byte[]>> connection = connect(nodeId, nodeIdToConnection);
+        try {
+            return connection.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while connecting to node " + nodeId, e);
+        } catch (ExecutionException e) {
+            // A failed attempt is forgotten, so the next use tries again
+            nodeIdToConnection.remove(nodeId, connection);
+            throw new RedisConnectionException("Could not connect to node " + nodeId + " at " + nodeIdToUri.get(nodeId), e.getCause());
+        }
+    }
+
+    // Node URIs from CLUSTER NODES only carry host and port
+    private RedisURI withSeedCredentials(RedisURI nodeUri) {
+        RedisURI uri = RedisURI.create(nodeUri.getHost(), nodeUri.getPort());
+        uri.setUsername(seedUri.getUsername());
+        if (seedUri.getPassword() != null) {
+            uri.setPassword(seedUri.getPassword());
+        }
+        uri.setSsl(seedUri.isSsl());
+        uri.setVerifyPeer(seedUri.getVerifyMode());
+        uri.setTimeout(seedUri.getTimeout());
+        return uri;
+    }
+
+    @Override
+    public void close() {
+        nodeIdToConnection.values().forEach(connection -> connection.thenAccept(StatefulRedisConnection::close));
+        nodeIdToSampleConnection.values().forEach(connection -> connection.thenAccept(StatefulRedisConnection::close));
+        redisClusterClient.shutdown();
+        redisClient.shutdown();
+        clientResources.shutdown();
+    }
+}
@@ -0,0 +1,17 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.protocol.ProtocolKeyword;
+
+import java.nio.charset.StandardCharsets;
+
+// Commands that Lettuce does not know about, sent through dispatch
+enum ExtraCommandType implements ProtocolKeyword {
+    LATENCY;
+
+    private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+    @Override
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
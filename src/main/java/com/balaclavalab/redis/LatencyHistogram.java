@@ -0,0 +1,103 @@
+package com.balaclavalab.redis;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram, cheap enough to record every call from several threads. Buckets are upper bounds
+ * in milliseconds, with an implicit overflow bucket; quantiles are read as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private final long[] upperBoundsMillis;
+    private final AtomicLongArray bucketCounts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram(long... upperBoundsMillis) {
+        this.upperBoundsMillis = upperBoundsMillis;
+        this.bucketCounts = new AtomicLongArray(upperBoundsMillis.length + 1);
+    }
+
+    public void record(long elapsedNanos) {
+        int bucket = 0;
+        while (bucket < upperBoundsMillis.length && elapsedNanos > TimeUnit.MILLISECONDS.toNanos(upperBoundsMillis[bucket])) {
+            bucket++;
+        }
+        bucketCounts.incrementAndGet(bucket);
+        count.increment();
+        sumNanos.add(elapsedNanos);
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < bucketCounts.length(); bucket++) {
+            bucketCounts.set(bucket, 0);
+        }
+        count.reset();
+        sumNanos.reset();
+    }
+
+    // -1 when nothing was recorded, Long.MAX_VALUE when the quantile is in the overflow bucket
+    public long getQuantileMillis(double quantile) {
+        long total = count.sum();
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int bucket = 0; bucket < upperBoundsMillis.length; bucket++) {
+            seen += bucketCounts.get(bucket);
+            if (seen >= rank) {
+                return upperBoundsMillis[bucket];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public String formatQuantile(double quantile) {
+        long quantileMillis = getQuantileMillis(quantile);
+        if (quantileMillis < 0) {
+            return "n/a";
+        }
+        return quantileMillis == Long.MAX_VALUE
+                ? "over " + upperBoundsMillis[upperBoundsMillis.length - 1] + "ms"
+                : quantileMillis + "ms";
+    }
+
+    public void writePrometheus(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulativeCount = 0;
+        for (int bucket = 0; bucket < upperBoundsMillis.length; bucket++) {
+            cumulativeCount += bucketCounts.get(bucket);
+            out.append(name).append("_bucket{le=\"").append(seconds(upperBoundsMillis[bucket])).append("\"} ")
+                    .append(cumulativeCount).append('\n');
+        }
+        cumulativeCount += bucketCounts.get(upperBoundsMillis.length);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulativeCount).append('\n');
+        out.append(name).append("_sum ").append(seconds(sumNanos.sum() / 1e6)).append('\n');
+        out.append(name).append("_count ").append(cumulativeCount).append('\n');
+    }
+
+    public void writeJson(StringBuilder out) {
+        out.append("{\"count\":").append(count.sum())
+                .append(",\"sumSeconds\":").append(seconds(sumNanos.sum() / 1e6))
+                .append(",\"p50Millis\":").append(getQuantileMillis(0.5))
+                .append(",\"p99Millis\":").append(getQuantileMillis(0.99))
+                .append(",\"buckets\":[");
+        for (int bucket = 0; bucket <= upperBoundsMillis.length; bucket++) {
+            if (bucket > 0) {
+                out.append(',');
+            }
+            String upperBound = bucket < upperBoundsMillis.length ? String.valueOf(upperBoundsMillis[bucket]) : "null";
+            out.append("{\"leMillis\":").append(upperBound).append(",\"count\":").append(bucketCounts.get(bucket)).append('}');
+        }
+        out.append("]}");
+    }
+
+    private static String seconds(double millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000);
+    }
+}
@@ -0,0 +1,39 @@
+package com.balaclavalab.redis;
+
+public class LoadSettings {
+
+    private final long sampleSeconds;
+    private final int sampleKeys;
+    private final String hotSlotPolicy;
+
+    public LoadSettings(
+            long sampleSeconds,
+            int sampleKeys,
+            String hotSlotPolicy) {
+        if (sampleSeconds < 1 || sampleKeys < 1) {
+            throw new IllegalArgumentException("Load sample seconds and keys must be at least 1");
+        }
+        if (!"first".equals(hotSlotPolicy) && !"spread".equals(hotSlotPolicy)) {
+            throw new IllegalArgumentException("Unknown hot slot policy: " + hotSlotPolicy);
+        }
+        this.sampleSeconds = sampleSeconds;
+        this.sampleKeys = sampleKeys;
+        this.hotSlotPolicy = hotSlotPolicy;
+    }
+
+    public long getSampleSeconds() {
+        return sampleSeconds;
+    }
+
+    public int getSampleKeys() {
+        return sampleKeys;
+    }
+
+    public boolean isSpreadingHotSlots() {
+        return "spread".equals(hotSlotPolicy);
+    }
+
+    public boolean isMovingHotSlotsFirst() {
+        return "first".equals(hotSlotPolicy);
+    }
+}
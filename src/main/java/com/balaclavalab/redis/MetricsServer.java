@@ -0,0 +1,64 @@
+package com.balaclavalab.redis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Serves reshard metrics over HTTP: Prometheus text format on {@code /metrics}, JSON on {@code /metrics.json}.
+ * Listens on the loopback interface unless another address is given (e.g. 0.0.0.0 to publish the port from a container).
+ */
+public class MetricsServer implements AutoCloseable {
+
+    private final HttpServer httpServer;
+    private final ExecutorService executorService;
+
+    public MetricsServer(String host, int port, MigrationMetrics migrationMetrics) {
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start metrics server on " + host + ":" + port, e);
+        }
+        httpServer.createContext("/metrics", exchange ->
+                respond(exchange, "text/plain; version=0.0.4; charset=utf-8", migrationMetrics::toPrometheusText));
+        httpServer.createContext("/metrics.json", exchange ->
+                respond(exchange, "application/json; charset=utf-8", migrationMetrics::toJson));
+        executorService = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executorService);
+        httpServer.start();
+        System.out.println("Serving metrics on http://" + host + ":" + port + "/metrics and /metrics.json\n");
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, Supplier<String> body) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executorService.shutdownNow();
+    }
+}
@@ -0,0 +1,54 @@
+package com.balaclavalab.redis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the number of keys for the next MIGRATE call. With a target latency the batch size follows the per-key
+ * cost observed on earlier batches; with a byte budget it is capped by the observed average key size. Without
+ * either the configured batch size is used as is.
+ */
+public class MigrationBatchSizer {
+
+    private static final int MIN_BATCH_SIZE = 1;
+    private static final int MAX_BATCH_SIZE_MULTIPLIER = 10;
+    private static final double SMOOTHING = 0.5;
+
+    private final MigrationSettings migrationSettings;
+    private final int maxBatchSize;
+    private double batchSize;
+
+    public MigrationBatchSizer(MigrationSettings migrationSettings) {
+        this.migrationSettings = migrationSettings;
+        this.maxBatchSize = migrationSettings.isAdaptive()
+                ? migrationSettings.getBatchSize() * MAX_BATCH_SIZE_MULTIPLIER
+                : migrationSettings.getBatchSize();
+        this.batchSize = migrationSettings.getBatchSize();
+    }
+
+    public synchronized int nextBatchSize() {
+        return (int) batchSize;
+    }
+
+    public synchronized void record(int keyCount, long bytes, long elapsedNanos) {
+        if (!migrationSettings.isAdaptive() || keyCount == 0) {
+            return;
+        }
+
+        double idealBatchSize = maxBatchSize;
+        long targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(migrationSettings.getTargetLatencyMillis());
+        if (targetLatencyNanos > 0 && elapsedNanos > 0) {
+            double nanosPerKey = (double) elapsedNanos / keyCount;
+            idealBatchSize = Math.min(idealBatchSize, targetLatencyNanos / nanosPerKey);
+        }
+        if (migrationSettings.getBatchBytes() > 0 && bytes > 0) {
+            double bytesPerKey = (double) bytes / keyCount;
+            idealBatchSize = Math.min(idealBatchSize, migrationSettings.getBatchBytes() / bytesPerKey);
+        }
+
+        // Shrink right away when batches get too slow or too big, grow gradually otherwise
+        double nextBatchSize = idealBatchSize < batchSize
+                ? idealBatchSize
+                : SMOOTHING * batchSize + (1 - SMOOTHING) * idealBatchSize;
+        batchSize = Math.max(MIN_BATCH_SIZE, Math.min(maxBatchSize, nextBatchSize));
+    }
+}
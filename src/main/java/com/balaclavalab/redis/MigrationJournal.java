@@ -0,0 +1,139 @@
+package com.balaclavalab.redis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+
+/**
+ * Append-only record of a reshard: the desired slot owners as ranges ({@code P from-to nodeId}), then a line when a
+ * slot migration starts ({@code S slot fromNodeId toNodeId}) and when it is done ({@code D slot}). Replaying it gives
+ * back the plan and which slots still need work, without planning or counting keys again.
+ */
+public class MigrationJournal implements AutoCloseable {
+
+    private final Path journalPath;
+    private final SlotMap desiredSlotMap;
+    private final BitSet startedSlots;
+    private final BitSet doneSlots;
+    private final BufferedWriter writer;
+
+    private MigrationJournal(Path journalPath, SlotMap desiredSlotMap, BitSet startedSlots, BitSet doneSlots) {
+        this.journalPath = journalPath;
+        this.desiredSlotMap = desiredSlotMap;
+        this.startedSlots = startedSlots;
+        this.doneSlots = doneSlots;
+        try {
+            this.writer = Files.newBufferedWriter(journalPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open migration journal " + journalPath, e);
+        }
+    }
+
+    public static MigrationJournal create(Path journalPath, SlotMap desiredSlotMap) {
+        try {
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not replace migration journal " + journalPath, e);
+        }
+        MigrationJournal journal = new MigrationJournal(journalPath, desiredSlotMap, new BitSet(), new BitSet());
+        desiredSlotMap.forEachRange((from, to, nodeId) -> journal.append("P " + from + "-" + to + " " + nodeId));
+        return journal;
+    }
+
+    public static MigrationJournal resume(Path journalPath) {
+        SlotMap desiredSlotMap = new SlotMap(Collections.emptyList());
+        BitSet startedSlots = new BitSet(REDIS_SLOT_COUNT);
+        BitSet doneSlots = new BitSet(REDIS_SLOT_COUNT);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(journalPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read migration journal " + journalPath, e);
+        }
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            // A crash can leave the last line half written
+            if (fields.length < 2) {
+                continue;
+            }
+            switch (fields[0]) {
+                case "P":
+                    if (fields.length == 3) {
+                        String[] range = fields[1].split("-");
+                        desiredSlotMap.setOwnerIndex(
+                                Integer.parseInt(range[0]), Integer.parseInt(range[1]), desiredSlotMap.addNode(fields[2]));
+                    }
+                    break;
+                case "S":
+                    startedSlots.set(Integer.parseInt(fields[1]));
+                    break;
+                case "D":
+                    doneSlots.set(Integer.parseInt(fields[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown migration journal entry: " + line);
+            }
+        }
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (!desiredSlotMap.isAssigned(slot)) {
+                throw new IllegalArgumentException("Migration journal " + journalPath + " has no desired node for slot " + slot);
+            }
+        }
+        return new MigrationJournal(journalPath, desiredSlotMap, startedSlots, doneSlots);
+    }
+
+    public SlotMap getDesiredSlotMap() {
+        return desiredSlotMap;
+    }
+
+    public synchronized boolean isInProgress(int slot) {
+        return startedSlots.get(slot) && !doneSlots.get(slot);
+    }
+
+    public synchronized int getDoneSlotCount() {
+        return doneSlots.cardinality();
+    }
+
+    public synchronized int getInProgressSlotCount() {
+        BitSet inProgressSlots = (BitSet) startedSlots.clone();
+        inProgressSlots.andNot(doneSlots);
+        return inProgressSlots.cardinality();
+    }
+
+    public synchronized void started(ReshardAction reshardAction) {
+        startedSlots.set(reshardAction.getSlot());
+        append("S " + reshardAction.getSlot() + " " + reshardAction.getFromNodeId() + " " + reshardAction.getToNodeId());
+    }
+
+    public synchronized void done(int slot) {
+        doneSlots.set(slot);
+        append("D " + slot);
+    }
+
+    private void append(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write migration journal " + journalPath, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close migration journal " + journalPath, e);
+        }
+    }
+}
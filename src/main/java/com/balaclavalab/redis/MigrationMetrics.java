@@ -0,0 +1,325 @@
+package com.balaclavalab.redis;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a reshard run: slot progress, keys and bytes moved per source/target node pair, large keys, MIGRATE and
+ * GETKEYSINSLOT latencies, slot durations, MIGRATE calls in flight and throttle backoff. Rates and the ETA are
+ * averages since the first slot started (of the current cycle in watch mode, see {@link #reset()}). Read as
+ * Prometheus text, JSON or a one-line progress summary.
+ */
+public class MigrationMetrics {
+
+    private final AtomicLong plannedSlots = new AtomicLong();
+    private final AtomicLong plannedKeys = new AtomicLong(-1);
+    private final LongAdder startedSlots = new LongAdder();
+    private final LongAdder doneSlots = new LongAdder();
+    private final LongAdder movedKeys = new LongAdder();
+    private final LongAdder movedBytes = new LongAdder();
+    private final LongAdder largeKeys = new LongAdder();
+    private final AtomicInteger migrationsInFlight = new AtomicInteger();
+    private final AtomicLong startNanos = new AtomicLong();
+    private final LatencyHistogram migrateLatency = new LatencyHistogram(1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 60000);
+    private final LatencyHistogram getKeysInSlotLatency = new LatencyHistogram(1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 60000);
+    private final LatencyHistogram slotDuration = new LatencyHistogram(10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000, 300000, 1800000);
+    private final Map<String, NodePairStats> nodePairToStats = new ConcurrentHashMap<>();
+    private final Map<String, Double> nodeIdToRateFactor = new ConcurrentHashMap<>();
+
+    // Adds up over reshards until reset; keys stay unknown once one of them did not know its keys
+    public synchronized void planned(int slotCount, long keyCount) {
+        long plannedKeyCount = plannedKeys.get();
+        plannedKeys.set(plannedSlots.get() == 0 ? keyCount : plannedKeyCount < 0 || keyCount < 0 ? -1 : plannedKeyCount + keyCount);
+        plannedSlots.addAndGet(slotCount);
+    }
+
+    // Watch mode starts over every cycle, so rates and the ETA do not average in the idle time between cycles.
+    // MIGRATE calls in flight are left alone, there are none between cycles
+    public synchronized void reset() {
+        plannedSlots.set(0);
+        plannedKeys.set(-1);
+        startedSlots.reset();
+        doneSlots.reset();
+        movedKeys.reset();
+        movedBytes.reset();
+        largeKeys.reset();
+        startNanos.set(0);
+        migrateLatency.reset();
+        getKeysInSlotLatency.reset();
+        slotDuration.reset();
+        nodePairToStats.clear();
+        nodeIdToRateFactor.clear();
+    }
+
+    public void slotStarted() {
+        startNanos.compareAndSet(0, System.nanoTime());
+        startedSlots.increment();
+    }
+
+    public void slotDone(String sourceNodeId, String targetNodeId, long elapsedNanos) {
+        doneSlots.increment();
+        slotDuration.record(elapsedNanos);
+        nodePairStats(sourceNodeId, targetNodeId).slots.increment();
+    }
+
+    public void migrateStarted() {
+        migrationsInFlight.incrementAndGet();
+    }
+
+    // Called for failed and cancelled calls too, so the gauge does not drift after errors
+    public void migrateFinished() {
+        migrationsInFlight.decrementAndGet();
+    }
+
+    public void migrateDone(String sourceNodeId, String targetNodeId, int keyCount, long bytes, long latencyNanos) {
+        migrateLatency.record(latencyNanos);
+        movedKeys.add(keyCount);
+        movedBytes.add(Math.max(bytes, 0));
+        NodePairStats stats = nodePairStats(sourceNodeId, targetNodeId);
+        stats.keys.add(keyCount);
+        stats.bytes.add(Math.max(bytes, 0));
+        stats.active(System.nanoTime() - latencyNanos);
+    }
+
+    public void largeKeyStarted() {
+        largeKeys.increment();
+    }
+
+    public void getKeysInSlotDone(long latencyNanos) {
+        getKeysInSlotLatency.record(latencyNanos);
+    }
+
+    public void rateFactorChanged(String nodeId, double rateFactor) {
+        nodeIdToRateFactor.put(nodeId, rateFactor);
+    }
+
+    private NodePairStats nodePairStats(String sourceNodeId, String targetNodeId) {
+        return nodePairToStats.computeIfAbsent(sourceNodeId + " " + targetNodeId,
+                ignored -> new NodePairStats(sourceNodeId, targetNodeId));
+    }
+
+    public long getDoneSlots() {
+        return doneSlots.sum();
+    }
+
+    public long getMovedKeys() {
+        return movedKeys.sum();
+    }
+
+    public long getMovedBytes() {
+        return movedBytes.sum();
+    }
+
+    private double getElapsedSeconds() {
+        long start = startNanos.get();
+        return start == 0 ? 0 : (System.nanoTime() - start) / 1e9;
+    }
+
+    private double perSecond(long count) {
+        double elapsedSeconds = getElapsedSeconds();
+        return elapsedSeconds == 0 ? 0 : count / elapsedSeconds;
+    }
+
+    // By keys when the number of keys to move is known, by slots otherwise; -1 until there is progress to go by
+    public long getEtaSeconds() {
+        long remainingSlots = plannedSlots.get() - doneSlots.sum();
+        if (remainingSlots <= 0) {
+            return 0;
+        }
+        if (plannedKeys.get() > 0) {
+            double keysPerSecond = perSecond(movedKeys.sum());
+            return keysPerSecond == 0 ? -1 : (long) (Math.max(plannedKeys.get() - movedKeys.sum(), 0) / keysPerSecond);
+        }
+        double slotsPerSecond = perSecond(doneSlots.sum());
+        return slotsPerSecond == 0 ? -1 : (long) (remainingSlots / slotsPerSecond);
+    }
+
+    public String formatProgress() {
+        long done = doneSlots.sum();
+        long running = startedSlots.sum() - done;
+        long queued = plannedSlots.get() - startedSlots.sum();
+        StringBuilder line = new StringBuilder("Progress: ")
+                .append(done).append('/').append(plannedSlots.get()).append(" slots done, ")
+                .append(running).append(" running, ")
+                .append(queued).append(" queued, ")
+                .append(movedKeys.sum());
+        if (plannedKeys.get() >= 0) {
+            line.append('/').append(plannedKeys.get());
+        }
+        line.append(" keys, ")
+                .append((long) perSecond(movedKeys.sum())).append(" keys/s, ")
+                .append((long) perSecond(movedBytes.sum())).append(" bytes/s, ")
+                .append("MIGRATE p99 ").append(migrateLatency.formatQuantile(0.99)).append(", ")
+                .append("ETA ").append(formatDuration(getEtaSeconds()));
+        nodeIdToRateFactor.entrySet().stream()
+                .filter(entry -> entry.getValue() < 1)
+                .forEach(entry -> line.append(", node ").append(entry.getKey()).append(" at ")
+                        .append(Math.round(entry.getValue() * 100)).append('%'));
+        return line.toString();
+    }
+
+    // Slowest node pairs first, they are the bottleneck
+    public List<String> formatNodePairs() {
+        List<String> lines = new ArrayList<>();
+        nodePairToStats.values().stream()
+                .sorted(Comparator.comparingDouble(NodePairStats::getKeysPerSecond))
+                .forEach(stats -> lines.add("Node " + stats.sourceNodeId + " -> " + stats.targetNodeId + ": "
+                        + stats.slots.sum() + " slots, " + stats.keys.sum() + " keys, " + stats.bytes.sum() + " bytes, "
+                        + (long) stats.getKeysPerSecond() + " keys/s, " + (long) stats.getBytesPerSecond() + " bytes/s"));
+        return lines;
+    }
+
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "reshard_slots_planned", "Slots to migrate in this run", plannedSlots.get());
+        counter(out, "reshard_slots_done_total", "Slots migrated", doneSlots.sum());
+        gauge(out, "reshard_slots_running", "Slots being migrated", startedSlots.sum() - doneSlots.sum());
+        gauge(out, "reshard_slots_queued", "Slots waiting to be migrated", plannedSlots.get() - startedSlots.sum());
+        gauge(out, "reshard_migrations_in_flight", "MIGRATE calls in flight", migrationsInFlight.get());
+        gauge(out, "reshard_keys_planned", "Keys to migrate in this run (-1 when unknown)", plannedKeys.get());
+        counter(out, "reshard_keys_moved_total", "Keys migrated", movedKeys.sum());
+        counter(out, "reshard_bytes_moved_total", "Bytes migrated (sampled with MEMORY USAGE)", movedBytes.sum());
+        counter(out, "reshard_large_keys_total", "Large keys migrated one by one", largeKeys.sum());
+        gauge(out, "reshard_eta_seconds", "Estimated seconds until the reshard is done (-1 when unknown)", getEtaSeconds());
+
+        out.append("# HELP reshard_node_pair_keys_moved_total Keys migrated from source to target node\n");
+        out.append("# TYPE reshard_node_pair_keys_moved_total counter\n");
+        nodePairToStats.values().forEach(stats -> out.append("reshard_node_pair_keys_moved_total")
+                .append(stats.labels()).append(' ').append(stats.keys.sum()).append('\n'));
+        out.append("# HELP reshard_node_pair_bytes_moved_total Bytes migrated from source to target node\n");
+        out.append("# TYPE reshard_node_pair_bytes_moved_total counter\n");
+        nodePairToStats.values().forEach(stats -> out.append("reshard_node_pair_bytes_moved_total")
+                .append(stats.labels()).append(' ').append(stats.bytes.sum()).append('\n'));
+        out.append("# HELP reshard_node_pair_slots_done_total Slots migrated from source to target node\n");
+        out.append("# TYPE reshard_node_pair_slots_done_total counter\n");
+        nodePairToStats.values().forEach(stats -> out.append("reshard_node_pair_slots_done_total")
+                .append(stats.labels()).append(' ').append(stats.slots.sum()).append('\n'));
+        out.append("# HELP reshard_node_pair_keys_per_second Keys migrated per second while the node pair was migrating\n");
+        out.append("# TYPE reshard_node_pair_keys_per_second gauge\n");
+        nodePairToStats.values().forEach(stats -> out.append("reshard_node_pair_keys_per_second")
+                .append(stats.labels()).append(' ').append(format(stats.getKeysPerSecond())).append('\n'));
+        out.append("# HELP reshard_node_pair_bytes_per_second Bytes migrated per second while the node pair was migrating\n");
+        out.append("# TYPE reshard_node_pair_bytes_per_second gauge\n");
+        nodePairToStats.values().forEach(stats -> out.append("reshard_node_pair_bytes_per_second")
+                .append(stats.labels()).append(' ').append(format(stats.getBytesPerSecond())).append('\n'));
+        out.append("# HELP reshard_throttle_rate_factor Share of the configured rate a node is throttled to\n");
+        out.append("# TYPE reshard_throttle_rate_factor gauge\n");
+        nodeIdToRateFactor.forEach((nodeId, rateFactor) -> out.append("reshard_throttle_rate_factor{node=\"").append(nodeId)
+                .append("\"} ").append(format(rateFactor)).append('\n'));
+
+        migrateLatency.writePrometheus(out, "reshard_migrate_latency_seconds", "MIGRATE call latency");
+        getKeysInSlotLatency.writePrometheus(out, "reshard_getkeysinslot_latency_seconds", "CLUSTER GETKEYSINSLOT call latency");
+        slotDuration.writePrometheus(out, "reshard_slot_duration_seconds", "Time to migrate a whole slot");
+        return out.toString();
+    }
+
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{");
+        out.append("\"slots\":{\"planned\":").append(plannedSlots.get())
+                .append(",\"done\":").append(doneSlots.sum())
+                .append(",\"running\":").append(startedSlots.sum() - doneSlots.sum())
+                .append(",\"queued\":").append(plannedSlots.get() - startedSlots.sum()).append('}');
+        out.append(",\"keys\":{\"planned\":").append(plannedKeys.get())
+                .append(",\"moved\":").append(movedKeys.sum())
+                .append(",\"perSecond\":").append(format(perSecond(movedKeys.sum()))).append('}');
+        out.append(",\"bytes\":{\"moved\":").append(movedBytes.sum())
+                .append(",\"perSecond\":").append(format(perSecond(movedBytes.sum()))).append('}');
+        out.append(",\"largeKeys\":").append(largeKeys.sum());
+        out.append(",\"migrationsInFlight\":").append(migrationsInFlight.get());
+        out.append(",\"etaSeconds\":").append(getEtaSeconds());
+        out.append(",\"nodePairs\":[");
+        String separator = "";
+        for (NodePairStats stats : nodePairToStats.values()) {
+            out.append(separator)
+                    .append("{\"source\":\"").append(stats.sourceNodeId)
+                    .append("\",\"target\":\"").append(stats.targetNodeId)
+                    .append("\",\"slots\":").append(stats.slots.sum())
+                    .append(",\"keys\":").append(stats.keys.sum())
+                    .append(",\"bytes\":").append(stats.bytes.sum())
+                    .append(",\"keysPerSecond\":").append(format(stats.getKeysPerSecond()))
+                    .append(",\"bytesPerSecond\":").append(format(stats.getBytesPerSecond())).append('}');
+            separator = ",";
+        }
+        out.append("],\"throttleRateFactors\":{");
+        separator = "";
+        for (Map.Entry<String, Double> entry : nodeIdToRateFactor.entrySet()) {
+            out.append(separator).append('"').append(entry.getKey()).append("\":").append(format(entry.getValue()));
+            separator = ",";
+        }
+        out.append("},\"migrateLatency\":");
+        migrateLatency.writeJson(out);
+        out.append(",\"getKeysInSlotLatency\":");
+        getKeysInSlotLatency.writeJson(out);
+        out.append(",\"slotDuration\":");
+        slotDuration.writeJson(out);
+        return out.append('}').toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        metric(out, name, help, "gauge", value);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        metric(out, name, help, "counter", value);
+    }
+
+    private static void metric(StringBuilder out, String name, String help, String type, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    static String formatDuration(long seconds) {
+        if (seconds < 0) {
+            return "unknown";
+        }
+        return String.format("%dh %02dm %02ds", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static class NodePairStats {
+        private final String sourceNodeId;
+        private final String targetNodeId;
+        private final LongAdder slots = new LongAdder();
+        private final LongAdder keys = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLong firstNanos = new AtomicLong();
+        private final AtomicLong lastNanos = new AtomicLong();
+
+        NodePairStats(String sourceNodeId, String targetNodeId) {
+            this.sourceNodeId = sourceNodeId;
+            this.targetNodeId = targetNodeId;
+        }
+
+        String labels() {
+            return "{source=\"" + sourceNodeId + "\",target=\"" + targetNodeId + "\"}";
+        }
+
+        void active(long dispatchNanos) {
+            firstNanos.compareAndSet(0, dispatchNanos);
+            lastNanos.set(System.nanoTime());
+        }
+
+        // Over the time between the first MIGRATE call of the pair and the last completed one
+        double getKeysPerSecond() {
+            long nanos = lastNanos.get() - firstNanos.get();
+            return nanos <= 0 ? 0 : keys.sum() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+
+        double getBytesPerSecond() {
+            long nanos = lastNanos.get() - firstNanos.get();
+            return nanos <= 0 ? 0 : bytes.sum() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        }
+    }
+}
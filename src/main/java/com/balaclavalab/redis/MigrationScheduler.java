@@ -0,0 +1,161 @@
+package com.balaclavalab.redis;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs slot migrations concurrently, never letting a node take part (as source or target) in more than
+ * {@code maxConcurrentMigrationsPerNode} migrations, nor the whole cluster in more than {@code maxConcurrentMigrations}.
+ * Otherwise migrations start in the order they are given in (e.g. heaviest slots first). Among runnable migrations
+ * of the same slot priority, the next one is preferably taken from the node that just received a slot.
+ */
+public class MigrationScheduler {
+
+    private final int maxConcurrentMigrations;
+    private final int maxConcurrentMigrationsPerNode;
+
+    public MigrationScheduler(int maxConcurrentMigrations, int maxConcurrentMigrationsPerNode) {
+        if (maxConcurrentMigrations < 1 || maxConcurrentMigrationsPerNode < 1) {
+            throw new IllegalArgumentException("Migration parallelism must be at least 1");
+        }
+        this.maxConcurrentMigrations = maxConcurrentMigrations;
+        this.maxConcurrentMigrationsPerNode = maxConcurrentMigrationsPerNode;
+    }
+
+    public void run(List<ReshardAction> reshardActions, Consumer<ReshardAction> slotMover) {
+        run(reshardActions, null, slotMover);
+    }
+
+    // slotPriorities: the priorities reshardActions are ordered by, null when all slots are equal
+    public void run(List<ReshardAction> reshardActions, long[] slotPriorities, Consumer<ReshardAction> slotMover) {
+        Map<String, Deque<ReshardAction>> nodeIdToRemainingReshardActions = new LinkedHashMap<>();
+        Map<ReshardAction, Integer> reshardActionToPosition = new IdentityHashMap<>();
+        for (ReshardAction reshardAction : reshardActions) {
+            nodeIdToRemainingReshardActions
+                    .computeIfAbsent(reshardAction.getFromNodeId(), nodeId -> new ArrayDeque<>())
+                    .add(reshardAction);
+            reshardActionToPosition.put(reshardAction, reshardActionToPosition.size());
+        }
+        Map<String, Integer> nodeIdToRunningMigrations = new HashMap<>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(maxConcurrentMigrations);
+        CompletionService<ReshardAction> completionService = new ExecutorCompletionService<>(executorService);
+        try {
+            int remaining = reshardActions.size();
+            int running = 0;
+            String preferredNodeId = null;
+            while (remaining > 0 || running > 0) {
+                while (running < maxConcurrentMigrations) {
+                    ReshardAction nextAction = pollNextAction(nodeIdToRemainingReshardActions, reshardActionToPosition,
+                            slotPriorities, nodeIdToRunningMigrations, preferredNodeId);
+                    if (nextAction == null) {
+                        break;
+                    }
+                    nodeIdToRunningMigrations.merge(nextAction.getFromNodeId(), 1, Integer::sum);
+                    nodeIdToRunningMigrations.merge(nextAction.getToNodeId(), 1, Integer::sum);
+                    completionService.submit(() -> slotMover.accept(nextAction), nextAction);
+                    remaining--;
+                    running++;
+                }
+
+                ReshardAction finishedAction = completionService.take().get();
+                running--;
+                nodeIdToRunningMigrations.merge(finishedAction.getFromNodeId(), -1, Integer::sum);
+                nodeIdToRunningMigrations.merge(finishedAction.getToNodeId(), -1, Integer::sum);
+                preferredNodeId = finishedAction.getToNodeId();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while migrating slots", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Slot migration failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    // The earliest runnable action over all source nodes (each node's actions are kept in input order), or the first
+    // runnable action of the preferred node when it has the same priority
+    private ReshardAction pollNextAction(
+            Map<String, Deque<ReshardAction>> nodeIdToRemainingReshardActions,
+            Map<ReshardAction, Integer> reshardActionToPosition,
+            long[] slotPriorities,
+            Map<String, Integer> nodeIdToRunningMigrations,
+            String preferredNodeId) {
+        String bestNodeId = null;
+        int bestPosition = Integer.MAX_VALUE;
+        for (String fromNodeId : nodeIdToRemainingReshardActions.keySet()) {
+            ReshardAction candidate = pollFirstRunnableAction(nodeIdToRemainingReshardActions, reshardActionToPosition,
+                    nodeIdToRunningMigrations, fromNodeId, bestPosition, false);
+            if (candidate != null) {
+                bestNodeId = fromNodeId;
+                bestPosition = reshardActionToPosition.get(candidate);
+            }
+        }
+        if (bestNodeId == null) {
+            return null;
+        }
+
+        if (preferredNodeId != null && !preferredNodeId.equals(bestNodeId)) {
+            ReshardAction preferredAction = pollFirstRunnableAction(nodeIdToRemainingReshardActions, reshardActionToPosition,
+                    nodeIdToRunningMigrations, preferredNodeId, Integer.MAX_VALUE, false);
+            ReshardAction bestAction = pollFirstRunnableAction(nodeIdToRemainingReshardActions, reshardActionToPosition,
+                    nodeIdToRunningMigrations, bestNodeId, Integer.MAX_VALUE, false);
+            if (preferredAction != null && getPriority(slotPriorities, preferredAction) == getPriority(slotPriorities, bestAction)) {
+                bestNodeId = preferredNodeId;
+            }
+        }
+        return pollFirstRunnableAction(nodeIdToRemainingReshardActions, reshardActionToPosition,
+                nodeIdToRunningMigrations, bestNodeId, Integer.MAX_VALUE, true);
+    }
+
+    private static long getPriority(long[] slotPriorities, ReshardAction reshardAction) {
+        return slotPriorities == null ? 0 : slotPriorities[reshardAction.getSlot()];
+    }
+
+    private ReshardAction pollFirstRunnableAction(
+            Map<String, Deque<ReshardAction>> nodeIdToRemainingReshardActions,
+            Map<ReshardAction, Integer> reshardActionToPosition,
+            Map<String, Integer> nodeIdToRunningMigrations,
+            String fromNodeId,
+            int beforePosition,
+            boolean remove) {
+        Deque<ReshardAction> remainingReshardActions = nodeIdToRemainingReshardActions.get(fromNodeId);
+        if (remainingReshardActions == null || !hasCapacity(nodeIdToRunningMigrations, fromNodeId)) {
+            return null;
+        }
+        Iterator<ReshardAction> iterator = remainingReshardActions.iterator();
+        while (iterator.hasNext()) {
+            ReshardAction reshardAction = iterator.next();
+            if (reshardActionToPosition.get(reshardAction) >= beforePosition) {
+                return null;
+            }
+            if (hasCapacity(nodeIdToRunningMigrations, reshardAction.getToNodeId())) {
+                if (remove) {
+                    iterator.remove();
+                    if (remainingReshardActions.isEmpty()) {
+                        nodeIdToRemainingReshardActions.remove(fromNodeId);
+                    }
+                }
+                return reshardAction;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasCapacity(Map<String, Integer> nodeIdToRunningMigrations, String nodeId) {
+        return nodeIdToRunningMigrations.getOrDefault(nodeId, 0) < maxConcurrentMigrationsPerNode;
+    }
+}
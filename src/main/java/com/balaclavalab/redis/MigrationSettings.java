@@ -0,0 +1,82 @@
+package com.balaclavalab.redis;
+
+public class MigrationSettings {
+
+    private final int batchSize;
+    private final int migrationsInFlight;
+    private final int parallelism;
+    private final int parallelismPerNode;
+    private final int propagationQuorum;
+    private final long targetLatencyMillis;
+    private final long batchBytes;
+    private final long largeKeyBytes;
+    private final boolean sampleMemoryUsage;
+    private final boolean verbose;
+
+    public MigrationSettings(
+            int batchSize,
+            int migrationsInFlight,
+            int parallelism,
+            int parallelismPerNode,
+            int propagationQuorum,
+            long targetLatencyMillis,
+            long batchBytes,
+            long largeKeyBytes,
+            boolean sampleMemoryUsage,
+            boolean verbose) {
+        this.batchSize = batchSize;
+        this.migrationsInFlight = migrationsInFlight;
+        this.parallelism = parallelism;
+        this.parallelismPerNode = parallelismPerNode;
+        this.propagationQuorum = propagationQuorum;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.batchBytes = batchBytes;
+        this.largeKeyBytes = largeKeyBytes;
+        this.sampleMemoryUsage = sampleMemoryUsage || batchBytes > 0 || largeKeyBytes > 0;
+        this.verbose = verbose;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMigrationsInFlight() {
+        return migrationsInFlight;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getParallelismPerNode() {
+        return parallelismPerNode;
+    }
+
+    public int getPropagationQuorum() {
+        return propagationQuorum;
+    }
+
+    public long getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public long getLargeKeyBytes() {
+        return largeKeyBytes;
+    }
+
+    public boolean isSampleMemoryUsage() {
+        return sampleMemoryUsage;
+    }
+
+    public boolean isAdaptive() {
+        return targetLatencyMillis > 0 || batchBytes > 0;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+}
@@ -0,0 +1,231 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.output.ArrayOutput;
+import io.lettuce.core.protocol.CommandArgs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits how fast keys are migrated, cluster-wide and per node (a node is limited both as source and as target).
+ * In feedback mode nodes are sampled periodically (PING round trip, LATENCY LATEST, INFO stats and memory) and each
+ * node that goes over a threshold has its rate halved, recovering gradually once it is healthy again. The slowest
+ * node of a migration also stretches the pauses between its batches.
+ */
+public class MigrationThrottle implements AutoCloseable {
+
+    private static final double MIN_RATE_FACTOR = 1.0 / 32;
+    private static final double RATE_FACTOR_RECOVERY = 0.1;
+
+    private final ThrottleSettings throttleSettings;
+    private final RateLimiter clusterKeyLimiter = new RateLimiter();
+    private final RateLimiter clusterByteLimiter = new RateLimiter();
+    private final Map<String, RateLimiter> nodeIdToKeyLimiter = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> nodeIdToByteLimiter = new ConcurrentHashMap<>();
+    private final Map<String, Double> nodeIdToRateFactor = new ConcurrentHashMap<>();
+    private final MigrationMetrics migrationMetrics;
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    public MigrationThrottle(
+            ThrottleSettings throttleSettings,
+            Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands,
+            MigrationMetrics migrationMetrics) {
+        this.throttleSettings = throttleSettings;
+        this.migrationMetrics = migrationMetrics;
+        if (throttleSettings.isFeedbackEnabled()) {
+            scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "migration-throttle");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduledExecutorService.scheduleWithFixedDelay(
+                    () -> sample(nodeIdToAsyncCommands),
+                    0,
+                    throttleSettings.getSampleIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            scheduledExecutorService = null;
+        }
+    }
+
+    public void acquire(String sourceNodeId, String targetNodeId, int keyCount, long bytes) {
+        double rateFactor = Math.min(getRateFactor(sourceNodeId), getRateFactor(targetNodeId));
+        long waitNanos = 0;
+        waitNanos = Math.max(waitNanos, clusterKeyLimiter.reserve(keyCount, throttleSettings.getClusterKeysPerSecond() * rateFactor));
+        waitNanos = Math.max(waitNanos, nodeKeyLimiter(sourceNodeId).reserve(keyCount, throttleSettings.getNodeKeysPerSecond() * rateFactor));
+        waitNanos = Math.max(waitNanos, nodeKeyLimiter(targetNodeId).reserve(keyCount, throttleSettings.getNodeKeysPerSecond() * rateFactor));
+        if (bytes > 0) {
+            waitNanos = Math.max(waitNanos, clusterByteLimiter.reserve(bytes, throttleSettings.getClusterBytesPerSecond() * rateFactor));
+            waitNanos = Math.max(waitNanos, nodeByteLimiter(sourceNodeId).reserve(bytes, throttleSettings.getNodeBytesPerSecond() * rateFactor));
+            waitNanos = Math.max(waitNanos, nodeByteLimiter(targetNodeId).reserve(bytes, throttleSettings.getNodeBytesPerSecond() * rateFactor));
+        }
+        sleepNanos(waitNanos);
+    }
+
+    // Backing off without configured rates: a node at 25% rate works 1/4 of the time and rests the rest
+    public void completed(String sourceNodeId, String targetNodeId, int keyCount, long bytes, long elapsedNanos) {
+        double rateFactor = Math.min(getRateFactor(sourceNodeId), getRateFactor(targetNodeId));
+        if (rateFactor < 1 && !throttleSettings.isLimitingRate()) {
+            sleepNanos((long) (elapsedNanos * (1 / rateFactor - 1)));
+        }
+    }
+
+    private RateLimiter nodeKeyLimiter(String nodeId) {
+        return nodeIdToKeyLimiter.computeIfAbsent(nodeId, ignored -> new RateLimiter());
+    }
+
+    private RateLimiter nodeByteLimiter(String nodeId) {
+        return nodeIdToByteLimiter.computeIfAbsent(nodeId, ignored -> new RateLimiter());
+    }
+
+    private double getRateFactor(String nodeId) {
+        return nodeIdToRateFactor.getOrDefault(nodeId, 1.0);
+    }
+
+    private void sample(Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands) {
+        try {
+            Map<String, NodeSample> nodeIdToSample = new ConcurrentHashMap<>();
+            nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> nodeIdToSample.put(nodeId, new NodeSample(asyncCommands)));
+            nodeIdToSample.forEach((nodeId, nodeSample) -> {
+                String overload = nodeSample.findOverload(throttleSettings);
+                double rateFactor = getRateFactor(nodeId);
+                double nextRateFactor = overload != null
+                        ? Math.max(MIN_RATE_FACTOR, rateFactor / 2)
+                        : Math.min(1, rateFactor + RATE_FACTOR_RECOVERY);
+                nodeIdToRateFactor.put(nodeId, nextRateFactor);
+                migrationMetrics.rateFactorChanged(nodeId, nextRateFactor);
+                if (overload != null && nextRateFactor < rateFactor) {
+                    System.out.println("Throttle: node " + nodeId + " backing off to " + percent(nextRateFactor) + " (" + overload + ")");
+                } else if (nextRateFactor == 1 && rateFactor < 1) {
+                    System.out.println("Throttle: node " + nodeId + " back to full rate");
+                }
+            });
+        } catch (RuntimeException e) {
+            System.out.println("Throttle: sampling failed, keeping current rates (" + e.getMessage() + ")");
+        }
+    }
+
+    private static String percent(double rateFactor) {
+        return Math.round(rateFactor * 100) + "%";
+    }
+
+    private static void sleepNanos(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while throttling migration", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduledExecutorService != null) {
+            scheduledExecutorService.shutdownNow();
+        }
+    }
+
+    private static class RateLimiter {
+        private long nextFreeNanos = System.nanoTime();
+
+        synchronized long reserve(long permits, double permitsPerSecond) {
+            if (permitsPerSecond <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + (long) (permits / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            return start - now;
+        }
+    }
+
+    private static class NodeSample {
+        private static final long TIMEOUT_SECONDS = 10;
+
+        private final long pingStartNanos = System.nanoTime();
+        private final CompletableFuture<Long> pingEndNanos;
+        private final RedisFuture<List<Object>> latencyLatest;
+        private final RedisFuture<String> info;
+
+        NodeSample(RedisAsyncCommands<byte[], byte[]> asyncCommands) {
+            this.pingEndNanos = asyncCommands.ping().toCompletableFuture().thenApply(pong -> System.nanoTime());
+            this.latencyLatest = asyncCommands.dispatch(
+                    ExtraCommandType.LATENCY,
+                    new ArrayOutput<>(ByteArrayCodec.INSTANCE),
+                    new CommandArgs<>(ByteArrayCodec.INSTANCE).add("LATEST"));
+            this.info = asyncCommands.info();
+        }
+
+        String findOverload(ThrottleSettings throttleSettings) {
+            List<String> overloads = new ArrayList<>();
+            if (throttleSettings.getMaxLatencyMillis() > 0) {
+                long pingMillis = TimeUnit.NANOSECONDS.toMillis(await(pingEndNanos) - pingStartNanos);
+                long latestLatencyMillis = findRecentLatencyMillis(throttleSettings.getSampleIntervalMillis());
+                long latencyMillis = Math.max(pingMillis, latestLatencyMillis);
+                if (latencyMillis > throttleSettings.getMaxLatencyMillis()) {
+                    overloads.add("latency " + latencyMillis + "ms > " + throttleSettings.getMaxLatencyMillis() + "ms");
+                }
+            }
+
+            String infoText = LettuceFutures.awaitOrCancel(info, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (throttleSettings.getMaxOpsPerSecond() > 0) {
+                long opsPerSecond = ReshardCli.parseInfoLong(infoText, "instantaneous_ops_per_sec");
+                if (opsPerSecond > throttleSettings.getMaxOpsPerSecond()) {
+                    overloads.add(opsPerSecond + " ops/s > " + throttleSettings.getMaxOpsPerSecond() + " ops/s");
+                }
+            }
+            if (throttleSettings.getMaxMemoryPercent() > 0) {
+                long usedMemory = ReshardCli.parseInfoLong(infoText, "used_memory");
+                long maxMemory = ReshardCli.parseInfoLong(infoText, "maxmemory");
+                if (maxMemory > 0 && usedMemory * 100 / maxMemory > throttleSettings.getMaxMemoryPercent()) {
+                    overloads.add("memory " + usedMemory * 100 / maxMemory + "% > " + throttleSettings.getMaxMemoryPercent() + "%");
+                }
+            }
+            return overloads.isEmpty() ? null : String.join(", ", overloads);
+        }
+
+        private static long await(CompletableFuture<Long> future) {
+            try {
+                return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while sampling node", e);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IllegalStateException("Could not sample node", e);
+            }
+        }
+
+        // LATENCY LATEST keeps the last spike forever, so only events from the last sample interval count
+        @SuppressWarnings("rawtypes")
+        private long findRecentLatencyMillis(long sampleIntervalMillis) {
+            List<Object> events;
+            try {
+                events = LettuceFutures.awaitOrCancel(latencyLatest, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                return 0;
+            }
+            long recentAfterSeconds = (System.currentTimeMillis() - Math.max(sampleIntervalMillis, 1000)) / 1000;
+            return events.stream()
+                    .map(event -> (List) event)
+                    .filter(event -> event.size() >= 3 && (Long) event.get(1) >= recentAfterSeconds)
+                    .mapToLong(event -> (Long) event.get(2))
+                    .max()
+                    .orElse(0);
+        }
+    }
+}
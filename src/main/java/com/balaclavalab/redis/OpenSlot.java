@@ -0,0 +1,67 @@
+package com.balaclavalab.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Slot left in MIGRATING or IMPORTING state on a node, as reported in the {@code myself} line of that node's
+ * CLUSTER NODES output ({@code [slot->-peer]} or {@code [slot-<-peer]}).
+ */
+public class OpenSlot {
+
+    private final int slot;
+    private final String nodeId;
+    private final String peerNodeId;
+    private final boolean migrating;
+
+    OpenSlot(int slot, String nodeId, String peerNodeId, boolean migrating) {
+        this.slot = slot;
+        this.nodeId = nodeId;
+        this.peerNodeId = peerNodeId;
+        this.migrating = migrating;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getPeerNodeId() {
+        return peerNodeId;
+    }
+
+    public boolean isMigrating() {
+        return migrating;
+    }
+
+    public static List<OpenSlot> parse(String clusterNodes) {
+        List<OpenSlot> openSlots = new ArrayList<>();
+        clusterNodes.lines()
+                .map(line -> line.split(" "))
+                .filter(fields -> fields.length > 2 && fields[2].contains("myself"))
+                .forEach(fields -> {
+                    for (int i = 8; i < fields.length; i++) {
+                        String field = fields[i];
+                        if (!field.startsWith("[") || !field.endsWith("]")) {
+                            continue;
+                        }
+                        String entry = field.substring(1, field.length() - 1);
+                        boolean migrating = entry.contains("->-");
+                        String[] parts = entry.split(migrating ? "->-" : "-<-");
+                        if (parts.length == 2) {
+                            openSlots.add(new OpenSlot(Integer.parseInt(parts[0]), fields[0], parts[1], migrating));
+                        }
+                    }
+                });
+        return openSlots;
+    }
+
+    @Override
+    public String toString() {
+        return "Slot " + slot + " is " + (migrating ? "migrating from node " : "importing to node ") + nodeId
+                + (migrating ? " to node " : " from node ") + peerNodeId;
+    }
+}
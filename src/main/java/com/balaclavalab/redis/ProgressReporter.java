@@ -0,0 +1,41 @@
+package com.balaclavalab.redis;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints a one-line progress summary of a reshard at a fixed interval, and a summary per node pair when done.
+ */
+public class ProgressReporter implements AutoCloseable {
+
+    private final MigrationMetrics migrationMetrics;
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    public ProgressReporter(MigrationMetrics migrationMetrics, long intervalSeconds) {
+        this.migrationMetrics = migrationMetrics;
+        if (intervalSeconds > 0) {
+            scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduledExecutorService.scheduleAtFixedRate(
+                    () -> System.out.println(migrationMetrics.formatProgress()),
+                    intervalSeconds,
+                    intervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            scheduledExecutorService = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduledExecutorService != null) {
+            scheduledExecutorService.shutdownNow();
+        }
+        System.out.println(migrationMetrics.formatProgress());
+        migrationMetrics.formatNodePairs().forEach(System.out::println);
+    }
+}
@@ -0,0 +1,292 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
+import io.lettuce.core.cluster.models.partitions.ClusterPartitionParser;
+import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Keeps the cluster balanced from a long-running process. Every cycle re-reads the topology, samples keys, memory
+ * and ops/s of each master (and slot CPU time when balancing load) and finishes slots left in MIGRATING/IMPORTING
+ * state. Once the imbalance of the balanced
+ * measure goes over the start threshold (or slots sit on excluded nodes), each cycle moves a bounded number of slots
+ * towards a freshly planned assignment, until the imbalance is back under the stop threshold.
+ */
+public class RebalanceWatcher {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final ConnectionManager connectionManager;
+    private final WatchSettings watchSettings;
+    private final List<String> excludedNodeIds;
+    private final String balanceBy;
+    private final LoadSettings loadSettings;
+    private final MigrationSettings migrationSettings;
+    private final ThrottleSettings throttleSettings;
+    private final MigrationMetrics migrationMetrics;
+    private final long progressIntervalSeconds;
+    private final boolean commit;
+    private boolean rebalancing;
+
+    public RebalanceWatcher(
+            ConnectionManager connectionManager,
+            WatchSettings watchSettings,
+            List<String> excludedNodeIds,
+            String balanceBy,
+            LoadSettings loadSettings,
+            MigrationSettings migrationSettings,
+            ThrottleSettings throttleSettings,
+            MigrationMetrics migrationMetrics,
+            long progressIntervalSeconds,
+            boolean commit) {
+        this.connectionManager = connectionManager;
+        this.watchSettings = watchSettings;
+        this.excludedNodeIds = excludedNodeIds;
+        this.balanceBy = balanceBy;
+        this.loadSettings = loadSettings;
+        this.migrationSettings = migrationSettings;
+        this.throttleSettings = throttleSettings;
+        this.migrationMetrics = migrationMetrics;
+        this.progressIntervalSeconds = progressIntervalSeconds;
+        this.commit = commit;
+    }
+
+    // Runs until interrupted; a failed cycle (e.g. a node restarting) is reported and retried on the next one
+    public void run() {
+        System.out.println("Watching cluster every " + watchSettings.getIntervalSeconds() + "s, rebalancing " + balanceBy
+                + " when imbalance goes over " + watchSettings.getStartImbalancePercent() + "% until it is under "
+                + watchSettings.getStopImbalancePercent() + "%, at most " + watchSettings.getMaxSlotsPerCycle() + " slots per cycle\n");
+        while (!Thread.currentThread().isInterrupted()) {
+            long cycleStartNanos = System.nanoTime();
+            try {
+                runCycle();
+            } catch (RuntimeException e) {
+                System.out.println("Watch cycle failed, retrying next cycle: " + e + "\n");
+            }
+            long sleepMillis = TimeUnit.SECONDS.toMillis(watchSettings.getIntervalSeconds())
+                    - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cycleStartNanos);
+            try {
+                Thread.sleep(Math.max(sleepMillis, 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runCycle() {
+        migrationMetrics.reset();
+        RedisAdvancedClusterCommands<byte[], byte[]> commands = connectionManager.cluster();
+        Partitions clusterPartitions = ClusterPartitionParser.parse(commands.clusterNodes());
+        List<RedisClusterNode> clusterMasterNodes = clusterPartitions.stream()
+                .filter(clusterNode -> clusterNode.getRole().isMaster())
+                .collect(toList());
+        List<String> failingNodeIds = clusterPartitions.stream()
+                .filter(clusterNode -> clusterNode.is(RedisClusterNode.NodeFlag.FAIL)
+                        || clusterNode.is(RedisClusterNode.NodeFlag.EVENTUAL_FAIL))
+                .map(RedisClusterNode::getNodeId)
+                .collect(toList());
+        if (!failingNodeIds.isEmpty()) {
+            System.out.println("Skipping cycle, nodes are failing: " + failingNodeIds + "\n");
+            return;
+        }
+
+        connectionManager.register(clusterPartitions);
+        List<String> masterNodeIds = clusterMasterNodes.stream().map(RedisClusterNode::getNodeId).collect(toList());
+        Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands = connectionManager.syncAll(masterNodeIds);
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands = nodeIdToClusterCommands.entrySet().stream()
+                .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().getStatefulConnection().async()));
+
+        SlotMap currentSlotMap = SlotMap.fromPartitions(clusterPartitions);
+        List<String> nodeIds = ReshardCli.getOptimalNodeIds(commands.clusterSlots(), clusterMasterNodes, excludedNodeIds);
+        // CLUSTER SLOTS of the seed node can still name a node that is no longer a master
+        nodeIds.retainAll(masterNodeIds);
+        Map<String, NodeSample> nodeIdToSample = sample(nodeIdToAsyncCommands);
+        // Load is triggered on the same per-slot CPU time it is planned with
+        SlotCensus slotCensus = null;
+        long[] slotCpuMicros = null;
+        if ("load".equals(balanceBy)) {
+            slotCensus = SlotCensus.scan(currentSlotMap, nodeIdToClusterCommands, false);
+            slotCpuMicros = SlotLoad.measure(currentSlotMap, slotCensus.getSlotKeyCounts(), nodeIdToClusterCommands, loadSettings)
+                    .getSlotCpuMicros();
+        }
+        int[] slotCounts = currentSlotMap.countSlotsByNode();
+        long[] nodeCpuMicros = slotCpuMicros == null ? null : currentSlotMap.sumByNode(slotCpuMicros);
+        nodeIds.forEach(nodeId -> {
+            int nodeIndex = currentSlotMap.indexOf(nodeId);
+            NodeSample nodeSample = nodeIdToSample.get(nodeId);
+            System.out.println("Node " + nodeId + " has " + (nodeIndex == SlotMap.UNASSIGNED ? 0 : slotCounts[nodeIndex])
+                    + " slots, " + nodeSample.keys + " keys, " + nodeSample.usedMemory + " bytes, " + nodeSample.opsPerSecond + " ops/s"
+                    + (nodeCpuMicros == null ? "" : ", " + (nodeIndex == SlotMap.UNASSIGNED ? 0 : nodeCpuMicros[nodeIndex]) + " CPU usec"));
+        });
+
+        double imbalancePercent = getImbalancePercent(nodeIds, currentSlotMap, nodeIdToSample, nodeCpuMicros);
+        int misplacedSlots = countSlotsOutside(currentSlotMap, nodeIds);
+        System.out.println(String.format(Locale.ROOT, "Imbalance of %s is %.1f%%", balanceBy, imbalancePercent)
+                + (misplacedSlots > 0 ? ", " + misplacedSlots + " slots are on excluded nodes" : "") + "\n");
+        if (!rebalancing && (imbalancePercent > watchSettings.getStartImbalancePercent() || misplacedSlots > 0)) {
+            System.out.println("Starting to rebalance\n");
+            rebalancing = true;
+        } else if (rebalancing && imbalancePercent <= watchSettings.getStopImbalancePercent() && misplacedSlots == 0) {
+            System.out.println("Balanced again, stopping to rebalance\n");
+            rebalancing = false;
+        }
+
+        SlotMap desiredSlotMap = currentSlotMap.copy();
+        Set<Integer> finishedSlots = ReshardCli.finishOpenSlots(currentSlotMap, desiredSlotMap, nodeIdToAsyncCommands, commit);
+
+        long[] slotPriorities = null;
+        if (rebalancing) {
+            if (slotCensus == null) {
+                slotCensus = SlotCensus.scan(currentSlotMap, nodeIdToClusterCommands, false);
+            }
+            long[] slotKeyCounts = slotCensus.getSlotKeyCounts();
+            SlotMap plannedSlotMap;
+            if ("slots".equals(balanceBy)) {
+                plannedSlotMap = ReshardPlanner.planMinimalMovement(currentSlotMap, nodeIds, slotKeyCounts);
+            } else {
+                long[] slotWeights = slotCpuMicros != null ? slotCpuMicros : ReshardCli.getSlotWeights(
+                        balanceBy, currentSlotMap, slotKeyCounts, nodeIdToClusterCommands, loadSettings);
+                plannedSlotMap = ReshardPlanner.planWeighted(currentSlotMap, nodeIds, slotWeights, loadSettings.isSpreadingHotSlots());
+                slotPriorities = loadSettings.isMovingHotSlotsFirst() ? slotWeights : null;
+            }
+            long[] cycleSlotPriorities = slotPriorities;
+            List<ReshardAction> reshardActions = currentSlotMap.movesTo(plannedSlotMap).stream()
+                    .filter(reshardAction -> !finishedSlots.contains(reshardAction.getSlot()))
+                    .collect(toList());
+            if (cycleSlotPriorities != null) {
+                reshardActions.sort(ReshardCli.heaviestFirst(cycleSlotPriorities));
+            }
+            if (reshardActions.isEmpty()) {
+                System.out.println("Planned assignment is the current one, stopping to rebalance\n");
+                rebalancing = false;
+            }
+            List<ReshardAction> cycleActions = takeFromEachSource(reshardActions, watchSettings.getMaxSlotsPerCycle());
+            cycleActions.forEach(reshardAction -> desiredSlotMap.setOwner(reshardAction.getSlot(), reshardAction.getToNodeId()));
+            if (!cycleActions.isEmpty()) {
+                System.out.println("Moving " + cycleActions.size() + " of " + reshardActions.size() + " planned slots this cycle\n");
+            }
+        }
+
+        if (currentSlotMap.countMovedSlots(desiredSlotMap) > 0) {
+            ReshardCli.reshardSlots(connectionManager, clusterPartitions, currentSlotMap, desiredSlotMap, nodeIdToClusterCommands,
+                    migrationSettings, throttleSettings, null, slotCensus, slotPriorities, migrationMetrics, progressIntervalSeconds, commit);
+        }
+    }
+
+    // Largest distance of a node from the mean, in percent of the mean
+    private double getImbalancePercent(
+            List<String> nodeIds,
+            SlotMap currentSlotMap,
+            Map<String, NodeSample> nodeIdToSample,
+            long[] nodeCpuMicros) {
+        int[] slotCounts = currentSlotMap.countSlotsByNode();
+        long[] loads = new long[nodeIds.size()];
+        long totalLoad = 0;
+        for (int i = 0; i < loads.length; i++) {
+            String nodeId = nodeIds.get(i);
+            NodeSample nodeSample = nodeIdToSample.get(nodeId);
+            int nodeIndex = currentSlotMap.indexOf(nodeId);
+            switch (balanceBy) {
+                case "keys":
+                    loads[i] = nodeSample.keys;
+                    break;
+                case "memory":
+                    loads[i] = nodeSample.usedMemory;
+                    break;
+                case "load":
+                    loads[i] = nodeIndex == SlotMap.UNASSIGNED ? 0 : nodeCpuMicros[nodeIndex];
+                    break;
+                default:
+                    loads[i] = nodeIndex == SlotMap.UNASSIGNED ? 0 : slotCounts[nodeIndex];
+            }
+            totalLoad += loads[i];
+        }
+        if (totalLoad == 0) {
+            return 0;
+        }
+        double meanLoad = (double) totalLoad / loads.length;
+        double maxDistance = 0;
+        for (long load : loads) {
+            maxDistance = Math.max(maxDistance, Math.abs(load - meanLoad));
+        }
+        return maxDistance * 100 / meanLoad;
+    }
+
+    private static int countSlotsOutside(SlotMap slotMap, List<String> nodeIds) {
+        int slotsOutside = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (slotMap.isAssigned(slot) && !nodeIds.contains(slotMap.getOwner(slot))) {
+                slotsOutside++;
+            }
+        }
+        return slotsOutside;
+    }
+
+    // Round robin over source nodes, so every overloaded node gets relief in each cycle
+    private static List<ReshardAction> takeFromEachSource(List<ReshardAction> reshardActions, int maxActions) {
+        Map<String, Deque<ReshardAction>> sourceNodeIdToActions = new LinkedHashMap<>();
+        reshardActions.forEach(reshardAction -> sourceNodeIdToActions
+                .computeIfAbsent(reshardAction.getFromNodeId(), ignored -> new ArrayDeque<>())
+                .add(reshardAction));
+        List<ReshardAction> takenActions = new ArrayList<>();
+        while (takenActions.size() < maxActions && !sourceNodeIdToActions.isEmpty()) {
+            sourceNodeIdToActions.values().removeIf(actions -> {
+                if (takenActions.size() < maxActions) {
+                    takenActions.add(actions.poll());
+                }
+                return actions.isEmpty();
+            });
+        }
+        return takenActions;
+    }
+
+    // All nodes are asked at once
+    private static Map<String, NodeSample> sample(Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands) {
+        Map<String, RedisFuture<String>> nodeIdToInfo = new LinkedHashMap<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> nodeIdToInfo.put(nodeId, asyncCommands.info()));
+        Map<String, NodeSample> nodeIdToSample = new LinkedHashMap<>();
+        nodeIdToInfo.forEach((nodeId, info) ->
+                nodeIdToSample.put(nodeId, new NodeSample(LettuceFutures.awaitOrCancel(info, TIMEOUT_SECONDS, TimeUnit.SECONDS))));
+        return nodeIdToSample;
+    }
+
+    private static class NodeSample {
+        private final long keys;
+        private final long usedMemory;
+        private final long opsPerSecond;
+
+        NodeSample(String info) {
+            this.keys = parseKeyspaceKeys(info);
+            this.usedMemory = ReshardCli.parseInfoLong(info, "used_memory");
+            this.opsPerSecond = ReshardCli.parseInfoLong(info, "instantaneous_ops_per_sec");
+        }
+
+        // Cluster nodes only have db0: "db0:keys=1000,expires=0,avg_ttl=0"
+        private static long parseKeyspaceKeys(String info) {
+            return info.lines()
+                    .filter(line -> line.startsWith("db0:keys="))
+                    .map(line -> line.substring("db0:keys=".length()).split(",")[0])
+                    .mapToLong(Long::parseLong)
+                    .findFirst()
+                    .orElse(0);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.balaclavalab.redis;
+
+class ReshardAction {
+    public String fromNodeId;
+    public int slot;
+    public String toNodeId;
+
+    ReshardAction(String fromNodeId, int slot, String toNodeId) {
+        this.fromNodeId = fromNodeId;
+        this.slot = slot;
+        this.toNodeId = toNodeId;
+    }
+
+    public String getFromNodeId() {
+        return fromNodeId;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public String getToNodeId() {
+        return toNodeId;
+    }
+}
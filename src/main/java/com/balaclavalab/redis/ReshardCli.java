@@ -1,15 +1,18 @@
 package com.balaclavalab.redis;
 
-import io.lettuce.core.MigrateArgs;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisCommandExecutionException;
 import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
-import io.lettuce.core.cluster.RedisClusterClient;
 import io.lettuce.core.cluster.api.sync.RedisAdvancedClusterCommands;
-import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
 import io.lettuce.core.cluster.models.partitions.ClusterPartitionParser;
 import io.lettuce.core.cluster.models.partitions.Partitions;
 import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
 import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -17,16 +20,21 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.partitioningBy;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static java.util.stream.Collectors.toUnmodifiableList;
@@ -34,6 +42,8 @@ import static java.util.stream.Collectors.toUnmodifiableList;
 public class ReshardCli {
 
     public static int REDIS_SLOT_COUNT = 16384;
+    private static final int ADD_SLOTS_BATCH_SIZE = 1024;
+    private static final long TIMEOUT_SECONDS = 10;
 
     public static void main(String[] args) {
         Options options = new Options();
@@ -42,13 +52,62 @@ public class ReshardCli {
         options.addOption("a", "assign", false, "Perform unassigned slot assignment");
         options.addOption("r", "reshard", false, "Perform reshard");
         options.addOption("o", "orderForNodeIds", true, "Desired node order");
+        options.addOption("p", "planner", true, "How to plan desired slots: contiguous (equal contiguous ranges) or minimal (move as few slots as possible), default contiguous");
+        options.addOption("bb", "balanceBy", true, "What to balance across nodes: slots, keys, memory or load (CPU time per slot), default slots");
+        options.addOption("hs", "hotSlots", true, "What to do with the heaviest slots when balancing keys, memory or load: first (move them first) or spread (keep them on different nodes), default first");
+        options.addOption("lss", "loadSampleSeconds", true, "How long (in seconds) slot load is measured for --balanceBy load (default 10)");
+        options.addOption("lsk", "loadSampleKeys", true, "Keys sampled per slot when CLUSTER SLOT-STATS is not available for --balanceBy load (default 8)");
         options.addOption("ckis", "countkeysinslots", false, "Print number of keys in each slot");
-        options.addOption("mb", "migrationBatchSize", true, "Migration batch size (default 1000)");
+        options.addOption("cs", "censusSnapshot", true, "File to reuse slot key counts from (if recent enough) or to save them to");
+        options.addOption("cma", "censusMaxAge", true, "How old (in seconds) slot key counts from --censusSnapshot can be (default 3600)");
+        options.addOption("cfs", "censusFullScan", false, "Count keys of every slot on every master to find keys on nodes not owning the slot");
+        options.addOption("mb", "migrationBatchSize", true, "Migration batch size, the starting size when batches adapt (default 1000)");
+        options.addOption("mf", "migrationsInFlight", true, "How many MIGRATE calls can be in flight for a single slot (default 4)");
+        options.addOption("mp", "migrationParallelism", true, "How many slots can be migrated at the same time (default 1)");
+        options.addOption("mpn", "migrationParallelismPerNode", true, "How many slot migrations a single node can take part in at the same time (default 1)");
+        options.addOption("pq", "propagationQuorum", true, "How many other masters must confirm the new owner of a migrated slot before its source moves on (default 0)");
+        options.addOption("mtl", "migrationTargetLatency", true, "Adapt migration batch size to keep each MIGRATE call around this many milliseconds");
+        options.addOption("mbb", "migrationBatchBytes", true, "Adapt migration batch size to keep each MIGRATE call under this many bytes (samples MEMORY USAGE)");
+        options.addOption("mlk", "migrationLargeKeyBytes", true, "Migrate keys of at least this many bytes one by one with a longer timeout (samples MEMORY USAGE)");
+        options.addOption("msm", "migrationSampleMemory", false, "Sample MEMORY USAGE of migrated keys");
+        options.addOption("tks", "throttleKeysPerSecond", true, "Limit how many keys per second are migrated in the whole cluster");
+        options.addOption("tbs", "throttleBytesPerSecond", true, "Limit how many bytes per second are migrated in the whole cluster (samples MEMORY USAGE)");
+        options.addOption("tnks", "throttleNodeKeysPerSecond", true, "Limit how many keys per second a single node sends or receives");
+        options.addOption("tnbs", "throttleNodeBytesPerSecond", true, "Limit how many bytes per second a single node sends or receives (samples MEMORY USAGE)");
+        options.addOption("tml", "throttleMaxLatency", true, "Back off on nodes whose latency (PING, LATENCY LATEST) goes over this many milliseconds");
+        options.addOption("tmo", "throttleMaxOps", true, "Back off on nodes serving more than this many ops/s (INFO instantaneous_ops_per_sec)");
+        options.addOption("tmm", "throttleMaxMemory", true, "Back off on nodes using more than this percent of maxmemory");
+        options.addOption("tsi", "throttleSampleInterval", true, "How often (in milliseconds) nodes are sampled for throttle feedback (default 1000)");
+        options.addOption("j", "journal", true, "File to record the reshard plan and progress in, so an interrupted reshard can be resumed");
+        options.addOption("rs", "resume", false, "Resume an interrupted reshard from --journal instead of planning again");
+        options.addOption("mport", "metricsPort", true, "Serve reshard metrics over HTTP on this port (/metrics for Prometheus, /metrics.json)");
+        options.addOption("mhost", "metricsHost", true, "Address the metrics server listens on (default 127.0.0.1, 0.0.0.0 to publish the port from a container)");
+        options.addOption("pi", "progressInterval", true, "How often (in seconds) reshard progress is printed (default 10, 0 to disable)");
+        options.addOption("v", "verbose", false, "Print every migrated slot and batch of keys");
+        options.addOption("w", "watch", false, "Keep running: finish open slots and rebalance (--balanceBy) in small steps whenever imbalance gets too high");
+        options.addOption("wi", "watchInterval", true, "How often (in seconds) the cluster is checked in watch mode (default 60)");
+        options.addOption("wst", "watchStartImbalance", true, "Start rebalancing when a node is this many percent off the mean (default 20)");
+        options.addOption("wsp", "watchStopImbalance", true, "Stop rebalancing when all nodes are within this many percent of the mean (default 10)");
+        options.addOption("wms", "watchMaxSlots", true, "Most slots moved per watch cycle (default 64)");
+        options.addOption("vf", "verify", false, "Check that all nodes agree on slot owners (the planned ones after --reshard --yes), no slot is left open and keys are only on slot owners (after --reshard also that slot key counts did not change), exits with 1 on any mismatch");
+        options.addOption("vdk", "verifyDigestKeys", true, "Keys per moved slot whose DUMP digest is compared before and after --reshard (default 0)");
         options.addOption("y", "yes", false, "Do actual operations");
         options.addOption("t", "writeTestData", false, "Write test data to cluster (for testing)");
         options.addOption("tk", "testDataKeysCount", true, "How many test keys write to db (default 1000000, for testing)");
+        options.addOption("tdks", "testDataKeysStart", true, "Number of the first test key to write or delete (default 0, for testing)");
+        options.addOption("tdvs", "testDataValueSize", true, "Test value size in bytes: N, MIN-MAX (uniform) or MIN-MAX:log (mostly small, some large), default is the key number (for testing)");
+        options.addOption("tdt", "testDataType", true, "Test key type: string, hash, set or zset (default string, for testing)");
+        options.addOption("tdm", "testDataMembers", true, "Fields or members of each test hash, set or zset (default 10, for testing)");
+        options.addOption("tdht", "testDataHotTags", true, "Number of hash tags to put hot keys under, each tag is a hot slot (default 0, for testing)");
+        options.addOption("tdhp", "testDataHotPercent", true, "Percent of test keys put under hot hash tags (default 0, for testing)");
+        options.addOption("tdc", "testDataConnections", true, "Connections to write, delete or send traffic through (default 4, for testing)");
+        options.addOption("tdp", "testDataPipeline", true, "Test data commands in flight per connection (default 1000, for testing)");
         options.addOption("dt", "deleteTestData", false, "Delete test data to cluster (for testing)");
+        options.addOption("dtm", "deleteTestDataMatch", true, "Delete keys matching a pattern (e.g. '{hot*') on all masters (for testing)");
+        options.addOption("tops", "trafficOpsPerSecond", true, "Send this many ops/s of reads and writes over test keys while resharding (for testing)");
+        options.addOption("trp", "trafficReadPercent", true, "Percent of reads in traffic sent while resharding (default 80, for testing)");
 
+        int exitCode = 0;
         CommandLineParser commandLineParser = new DefaultParser();
         try {
             CommandLine commandLine = commandLineParser.parse(options, args);
@@ -67,90 +126,245 @@ public class ReshardCli {
                 List<String> specifiedOrderForNodeIds = specifiedOrderForNodeIdsString == null
                         ? Collections.emptyList()
                         : List.of(specifiedOrderForNodeIdsString.split(","));
+                String planner = commandLine.getOptionValue("planner", "contiguous");
+                if (!"contiguous".equals(planner) && !"minimal".equals(planner)) {
+                    throw new ParseException("Unknown planner (--planner): " + planner + ", expected contiguous or minimal");
+                }
+                String balanceBy = commandLine.getOptionValue("balanceBy", "slots");
+                if (!List.of("slots", "keys", "memory", "load").contains(balanceBy)) {
+                    throw new ParseException("Unknown balance (--balanceBy): " + balanceBy + ", expected slots, keys, memory or load");
+                }
+                LoadSettings loadSettings;
+                try {
+                    loadSettings = new LoadSettings(
+                            Long.parseLong(commandLine.getOptionValue("loadSampleSeconds", "10")),
+                            Integer.parseInt(commandLine.getOptionValue("loadSampleKeys", "8")),
+                            commandLine.getOptionValue("hotSlots", "first"));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid load settings: " + e.getMessage());
+                }
                 boolean countKeysInSlot = commandLine.hasOption("ckis");
-                int migrationBatchSize = Integer.parseInt(commandLine.getOptionValue("migrationBatchSize", "1000"));
+                String censusSnapshotString = commandLine.getOptionValue("censusSnapshot");
+                Path censusSnapshotPath = censusSnapshotString == null ? null : Path.of(censusSnapshotString);
+                Duration censusMaxAge = Duration.ofSeconds(Long.parseLong(commandLine.getOptionValue("censusMaxAge", "3600")));
+                boolean censusFullScan = commandLine.hasOption("censusFullScan");
+                ThrottleSettings throttleSettings = new ThrottleSettings(
+                        Long.parseLong(commandLine.getOptionValue("throttleKeysPerSecond", "0")),
+                        Long.parseLong(commandLine.getOptionValue("throttleBytesPerSecond", "0")),
+                        Long.parseLong(commandLine.getOptionValue("throttleNodeKeysPerSecond", "0")),
+                        Long.parseLong(commandLine.getOptionValue("throttleNodeBytesPerSecond", "0")),
+                        Long.parseLong(commandLine.getOptionValue("throttleMaxLatency", "0")),
+                        Long.parseLong(commandLine.getOptionValue("throttleMaxOps", "0")),
+                        Integer.parseInt(commandLine.getOptionValue("throttleMaxMemory", "0")),
+                        Long.parseLong(commandLine.getOptionValue("throttleSampleInterval", "1000")));
+                MigrationSettings migrationSettings = new MigrationSettings(
+                        Integer.parseInt(commandLine.getOptionValue("migrationBatchSize", "1000")),
+                        Integer.parseInt(commandLine.getOptionValue("migrationsInFlight", "4")),
+                        Integer.parseInt(commandLine.getOptionValue("migrationParallelism", "1")),
+                        Integer.parseInt(commandLine.getOptionValue("migrationParallelismPerNode", "1")),
+                        Integer.parseInt(commandLine.getOptionValue("propagationQuorum", "0")),
+                        Long.parseLong(commandLine.getOptionValue("migrationTargetLatency", "0")),
+                        Long.parseLong(commandLine.getOptionValue("migrationBatchBytes", "0")),
+                        Long.parseLong(commandLine.getOptionValue("migrationLargeKeyBytes", "0")),
+                        commandLine.hasOption("migrationSampleMemory") || throttleSettings.isLimitingBytes(),
+                        commandLine.hasOption("verbose"));
+                int metricsPort = Integer.parseInt(commandLine.getOptionValue("metricsPort", "0"));
+                String metricsHost = commandLine.getOptionValue("metricsHost", "127.0.0.1");
+                long progressIntervalSeconds = Long.parseLong(commandLine.getOptionValue("progressInterval", "10"));
                 boolean commit = commandLine.hasOption("y");
+                boolean watch = commandLine.hasOption("watch");
+                boolean verify = commandLine.hasOption("verify");
+                int verifyDigestKeys = Integer.parseInt(commandLine.getOptionValue("verifyDigestKeys", "0"));
+                WatchSettings watchSettings;
+                try {
+                    watchSettings = new WatchSettings(
+                            Long.parseLong(commandLine.getOptionValue("watchInterval", "60")),
+                            Integer.parseInt(commandLine.getOptionValue("watchStartImbalance", "20")),
+                            Integer.parseInt(commandLine.getOptionValue("watchStopImbalance", "10")),
+                            Integer.parseInt(commandLine.getOptionValue("watchMaxSlots", "64")));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid watch settings: " + e.getMessage());
+                }
+                String journalString = commandLine.getOptionValue("journal");
+                Path journalPath = journalString == null ? null : Path.of(journalString);
+                boolean resume = commandLine.hasOption("resume");
+                if (resume && journalPath == null) {
+                    throw new ParseException("Resuming (--resume) needs a journal (--journal)");
+                }
                 boolean writeTestData = commandLine.hasOption("t");
-                int testDataKeysCount = Integer.parseInt(commandLine.getOptionValue("migrationBatchSize", "1000000"));
                 boolean deleteTestData = commandLine.hasOption("dt");
-
-                RedisAdvancedClusterCommands<byte[], byte[]> commands = RedisClusterClient.create(uri)
-                        .connect(new ByteArrayCodec())
-                        .sync();
-                Partitions clusterPartitions = ClusterPartitionParser.parse(commands.clusterNodes());
-                printClusterInformation(clusterPartitions);
-
-                List<RedisClusterNode> clusterMasterNodes = clusterPartitions.stream()
-                        .filter(clusterPartition -> clusterPartition.getRole().isMaster())
-                        .collect(toUnmodifiableList());
-
-                int nodeCount = (int) clusterPartitions.stream()
-                        .filter(clusterPartition -> clusterPartition.getRole().isMaster())
-                        .filter(clusterPartition -> !excludeNodeIds.contains(clusterPartition.getNodeId()))
-                        .count();
-                List<Object> clusterSlots = commands.clusterSlots();
-                printClusterSlots(clusterSlots);
-
-                List<List<Integer>> desiredSlots = createDesiredSlots(nodeCount);
-                List<String> optimalNodeIds = specifiedOrderForNodeIds.isEmpty()
-                        ? getOptimalNodeIds(clusterSlots, desiredSlots, clusterMasterNodes, excludeNodeIds)
-                        : specifiedOrderForNodeIds;
-                assert optimalNodeIds.size() == desiredSlots.size();
-                printDesiredClusterSlots(desiredSlots, optimalNodeIds);
-
-                Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands = clusterPartitions.stream()
-                        .map(clusterNode -> RedisClusterClient.create(clusterNode.getUri())
-                                .connect(new ByteArrayCodec()).getConnection(clusterNode.getNodeId()).sync())
-                        .collect(toMap(
-                                RedisClusterCommands::clusterMyId,
-                                clusterCommands -> clusterCommands));
-                Map<String, RedisCommands<byte[], byte[]>> masterNodeIdToClusterCommands = clusterMasterNodes.stream()
-                        .collect(toMap(
-                                RedisClusterNode::getNodeId,
-                                clusterMasterNode -> nodeIdToClusterCommands.get(clusterMasterNode.getNodeId())));
-
-                Map<Integer, String> slotToDesiredNodeIdMap = new HashMap<>();
-                for (int i = 0; i < desiredSlots.size(); i++) {
-                    final int nodeNumber = i;
-                    desiredSlots.get(i)
-                            .forEach(slot -> slotToDesiredNodeIdMap.put(slot, optimalNodeIds.get(nodeNumber)));
+                String deleteTestDataMatch = commandLine.getOptionValue("deleteTestDataMatch");
+                WorkloadSettings workloadSettings;
+                try {
+                    workloadSettings = new WorkloadSettings(
+                            Long.parseLong(commandLine.getOptionValue("testDataKeysStart", "0")),
+                            Long.parseLong(commandLine.getOptionValue("testDataKeysCount", "1000000")),
+                            ValueSizeDistribution.parse(commandLine.getOptionValue("testDataValueSize", "0")),
+                            commandLine.getOptionValue("testDataType", "string"),
+                            Integer.parseInt(commandLine.getOptionValue("testDataMembers", "10")),
+                            Integer.parseInt(commandLine.getOptionValue("testDataHotTags", "0")),
+                            Integer.parseInt(commandLine.getOptionValue("testDataHotPercent", "0")),
+                            Integer.parseInt(commandLine.getOptionValue("testDataConnections", "4")),
+                            Integer.parseInt(commandLine.getOptionValue("testDataPipeline", "1000")));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Invalid test data settings: " + e.getMessage());
                 }
-
-                if (countKeysInSlot) {
-                    printCountKeysInSlot(clusterPartitions, nodeIdToClusterCommands);
+                long trafficOpsPerSecond = Long.parseLong(commandLine.getOptionValue("trafficOpsPerSecond", "0"));
+                int trafficReadPercent = Integer.parseInt(commandLine.getOptionValue("trafficReadPercent", "80"));
+
+                if (watch) {
+                    MigrationMetrics migrationMetrics = new MigrationMetrics();
+                    MetricsServer metricsServer = metricsPort > 0 && commit ? new MetricsServer(metricsHost, metricsPort, migrationMetrics) : null;
+                    try (ConnectionManager connectionManager = new ConnectionManager(uri)) {
+                        new RebalanceWatcher(connectionManager, watchSettings, excludeNodeIds, balanceBy, loadSettings,
+                                migrationSettings, throttleSettings, migrationMetrics, progressIntervalSeconds, commit).run();
+                    } finally {
+                        if (metricsServer != null) {
+                            metricsServer.close();
+                        }
+                    }
+                    System.exit(0);
                 }
 
-                if (assign) {
-                    if (clusterSlots.isEmpty()) {
-                        emptyClusterSlotAssignment(clusterMasterNodes, desiredSlots, nodeIdToClusterCommands, commit);
+                try (ConnectionManager connectionManager = new ConnectionManager(uri)) {
+                    RedisAdvancedClusterCommands<byte[], byte[]> commands = connectionManager.cluster();
+                    Partitions clusterPartitions = ClusterPartitionParser.parse(commands.clusterNodes());
+                    printClusterInformation(clusterPartitions);
+
+                    List<RedisClusterNode> clusterMasterNodes = clusterPartitions.stream()
+                            .filter(clusterPartition -> clusterPartition.getRole().isMaster())
+                            .collect(toUnmodifiableList());
+
+                    List<Object> clusterSlots = commands.clusterSlots();
+                    printClusterSlots(clusterSlots);
+
+                    connectionManager.register(clusterPartitions);
+                    List<String> masterNodeIds = clusterMasterNodes.stream()
+                            .map(RedisClusterNode::getNodeId)
+                            .collect(toList());
+                    Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands = connectionManager.syncAll(masterNodeIds);
+
+                    List<String> optimalNodeIds = specifiedOrderForNodeIds.isEmpty()
+                            ? getOptimalNodeIds(clusterSlots, clusterMasterNodes, excludeNodeIds)
+                            : specifiedOrderForNodeIds;
+                    SlotMap desiredSlotMap = createDesiredSlots(optimalNodeIds);
+
+                    SlotMap currentSlotMap = SlotMap.fromPartitions(clusterPartitions);
+                    boolean weightedPlan = !resume && ("minimal".equals(planner) || !"slots".equals(balanceBy));
+                    SlotCensus slotCensus = null;
+                    if (countKeysInSlot || weightedPlan) {
+                        slotCensus = SlotCensus.loadOrScan(
+                                censusSnapshotPath,
+                                censusMaxAge,
+                                currentSlotMap,
+                                nodeIdToClusterCommands,
+                                censusFullScan);
+                    }
 
-                        printCommitFlagMessage(commit);
-                        System.exit(0);
+                    long[] slotPriorities = null;
+                    if (weightedPlan) {
+                        long[] slotKeyCounts = slotCensus.getSlotKeyCounts();
+                        SlotMap plannedSlotMap;
+                        if ("slots".equals(balanceBy)) {
+                            plannedSlotMap = ReshardPlanner.planMinimalMovement(currentSlotMap, optimalNodeIds, slotKeyCounts);
+                        } else {
+                            long[] slotWeights = getSlotWeights(balanceBy, currentSlotMap, slotKeyCounts, nodeIdToClusterCommands, loadSettings);
+                            plannedSlotMap = ReshardPlanner.planWeighted(
+                                    currentSlotMap, optimalNodeIds, slotWeights, loadSettings.isSpreadingHotSlots());
+                            slotPriorities = loadSettings.isMovingHotSlotsFirst() ? slotWeights : null;
+                            printPredictedLoad(optimalNodeIds, currentSlotMap, plannedSlotMap, slotWeights, balanceBy);
+                        }
+                        printPlanComparison(currentSlotMap, desiredSlotMap, plannedSlotMap, slotKeyCounts);
+                        desiredSlotMap = plannedSlotMap;
                     }
 
-                    checkIfAllSlotsAreAssigned(clusterPartitions, slotToDesiredNodeIdMap, nodeIdToClusterCommands, commit);
-                }
+                    MigrationJournal migrationJournal = null;
+                    if (resume) {
+                        migrationJournal = MigrationJournal.resume(journalPath);
+                        desiredSlotMap = migrationJournal.getDesiredSlotMap();
+                        System.out.println("Resuming from journal " + journalPath + ": " + migrationJournal.getDoneSlotCount()
+                                + " slots done, " + migrationJournal.getInProgressSlotCount() + " slots in progress\n");
+                    } else if (journalPath != null && reshard && commit) {
+                        migrationJournal = MigrationJournal.create(journalPath, desiredSlotMap);
+                    }
+                    printDesiredClusterSlots(desiredSlotMap);
 
-                if (writeTestData && commit) {
-                    writeTestData(commands, testDataKeysCount);
-                }
+                    if (countKeysInSlot) {
+                        printCountKeysInSlot(currentSlotMap, slotCensus);
+                    }
 
-                if (deleteTestData && commit) {
-                    deleteTestData(commands, testDataKeysCount);
-                }
+                    if (assign) {
+                        if (clusterSlots.isEmpty()) {
+                            emptyClusterSlotAssignment(desiredSlotMap, nodeIdToClusterCommands, commit);
 
-                if (reshard) {
-                    reshardSlots(clusterPartitions, slotToDesiredNodeIdMap, masterNodeIdToClusterCommands, migrationBatchSize, commit);
-                }
+                            printCommitFlagMessage(commit);
+                            System.exit(0);
+                        }
+
+                        checkIfAllSlotsAreAssigned(currentSlotMap, desiredSlotMap, nodeIdToClusterCommands, commit);
+                    }
+
+                    WorkloadGenerator workloadGenerator = new WorkloadGenerator(workloadSettings, connectionManager);
+                    if (writeTestData && commit) {
+                        workloadGenerator.write();
+                    }
+
+                    if (deleteTestData && commit) {
+                        workloadGenerator.delete();
+                    }
+
+                    if (deleteTestDataMatch != null && commit) {
+                        workloadGenerator.deleteMatching(deleteTestDataMatch, masterNodeIds);
+                    }
+
+                    // Only a committed reshard changes owners, otherwise the cluster is checked against itself
+                    SlotVerifier slotVerifier = new SlotVerifier(reshard && commit ? desiredSlotMap : currentSlotMap, verifyDigestKeys);
+                    SlotCensus slotCensusBefore = null;
+                    if (verify && reshard && commit) {
+                        slotCensusBefore = SlotCensus.scan(currentSlotMap, nodeIdToClusterCommands, false);
+                        slotVerifier.sampleDigests(currentSlotMap, nodeIdToClusterCommands);
+                    }
 
-                printCommitFlagMessage(commit);
+                    if (reshard) {
+                        MigrationMetrics migrationMetrics = new MigrationMetrics();
+                        MetricsServer metricsServer = metricsPort > 0 && commit ? new MetricsServer(metricsHost, metricsPort, migrationMetrics) : null;
+                        TrafficGenerator trafficGenerator = null;
+                        try {
+                            if (trafficOpsPerSecond > 0 && commit) {
+                                trafficGenerator = new TrafficGenerator(workloadGenerator, trafficOpsPerSecond, trafficReadPercent, connectionManager);
+                            }
+                            reshardSlots(connectionManager, clusterPartitions, currentSlotMap, desiredSlotMap, nodeIdToClusterCommands,
+                                    migrationSettings, throttleSettings, migrationJournal, slotCensus, slotPriorities, migrationMetrics, progressIntervalSeconds, commit);
+                        } finally {
+                            if (trafficGenerator != null) {
+                                trafficGenerator.close();
+                            }
+                            if (metricsServer != null) {
+                                metricsServer.close();
+                            }
+                        }
+                    }
+
+                    if (verify) {
+                        // Replicas are checked too, so the topology is read again
+                        Partitions verifiedPartitions = ClusterPartitionParser.parse(commands.clusterNodes());
+                        connectionManager.register(verifiedPartitions);
+                        Map<String, RedisCommands<byte[], byte[]>> allNodeIdToClusterCommands = connectionManager.syncAll(
+                                verifiedPartitions.stream().map(RedisClusterNode::getNodeId).collect(toList()));
+                        if (!slotVerifier.verify(verifiedPartitions, allNodeIdToClusterCommands, slotCensusBefore)) {
+                            exitCode = 1;
+                        }
+                    }
+
+                    printCommitFlagMessage(commit);
+                }
             }
         } catch (ParseException e) {
             System.err.println("Parsing failed. Reason: " + e.getMessage());
             printHelp(options);
         }
 
-        System.exit(0);
+        System.exit(exitCode);
     }
 
     private static void printCommitFlagMessage(boolean commit) {
@@ -161,10 +375,8 @@ public class ReshardCli {
 
     public static List<String> getOptimalNodeIds(
             List<Object> clusterSlots,
-            List<List<Integer>> desiredSlots,
             List<RedisClusterNode> clusterMasterNodes,
             List<String> excludedNodeIds) {
-        assert desiredSlots.size() == clusterMasterNodes.size();
         List<String> currentNodeIdOrder = getCurrentNodeIdOrder(clusterSlots);
         List<String> masterNodeIds = clusterMasterNodes.stream()
                 .map(RedisClusterNode::getNodeId)
@@ -212,217 +424,293 @@ public class ReshardCli {
         }
     }
 
-    private static void printDesiredClusterSlots(List<List<Integer>> desiredClusterSlots, List<String> optimalNodeIdOrder) {
+    private static void printDesiredClusterSlots(SlotMap desiredSlotMap) {
         System.out.println("Desired cluster slots:");
-        for (int i = 0; i < desiredClusterSlots.size(); i++) {
-            List<Integer> slots = desiredClusterSlots.get(i);
-            int from = slots.get(0);
-            int to = slots.get(slots.size() - 1);
-            String nodeId = optimalNodeIdOrder.get(i);
-            System.out.println("Slots " + from + "-" + to + " should be on node " + nodeId);
-        }
+        desiredSlotMap.forEachRange((from, to, nodeId) ->
+                System.out.println("Slots " + from + "-" + to + " should be on node " + nodeId));
+
+        System.out.println();
+    }
 
+    private static void printPlanComparison(
+            SlotMap currentSlotMap,
+            SlotMap contiguousSlotMap,
+            SlotMap desiredSlotMap,
+            long[] slotKeyCounts) {
+        System.out.println("Contiguous plan moves " + currentSlotMap.countMovedSlots(contiguousSlotMap)
+                + " slots with " + currentSlotMap.countMovedKeys(contiguousSlotMap, slotKeyCounts) + " keys");
+        System.out.println("Desired plan moves " + currentSlotMap.countMovedSlots(desiredSlotMap)
+                + " slots with " + currentSlotMap.countMovedKeys(desiredSlotMap, slotKeyCounts) + " keys");
         System.out.println();
     }
 
+    private static void printPredictedLoad(
+            List<String> nodeIds,
+            SlotMap currentSlotMap,
+            SlotMap desiredSlotMap,
+            long[] slotWeights,
+            String balanceBy) {
+        long[] currentLoads = currentSlotMap.sumByNode(slotWeights);
+        long[] desiredLoads = desiredSlotMap.sumByNode(slotWeights);
+        System.out.println("Predicted " + balanceBy + " per node:");
+        Stream.concat(currentSlotMap.getNodeIds().stream(), nodeIds.stream())
+                .distinct()
+                .forEach(nodeId -> System.out.println("Node " + nodeId + " has " + getLoad(currentSlotMap, currentLoads, nodeId)
+                        + ", will have " + getLoad(desiredSlotMap, desiredLoads, nodeId)));
+        System.out.println();
+    }
+
+    private static long getLoad(SlotMap slotMap, long[] loads, String nodeId) {
+        int nodeIndex = slotMap.indexOf(nodeId);
+        return nodeIndex == SlotMap.UNASSIGNED ? 0 : loads[nodeIndex];
+    }
+
+    static long[] getSlotWeights(
+            String balanceBy,
+            SlotMap currentSlotMap,
+            long[] slotKeyCounts,
+            Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
+            LoadSettings loadSettings) {
+        switch (balanceBy) {
+            case "memory":
+                return estimateSlotBytes(currentSlotMap, slotKeyCounts, nodeIdToClusterCommands);
+            case "load":
+                return SlotLoad.measure(currentSlotMap, slotKeyCounts, nodeIdToClusterCommands, loadSettings).getSlotCpuMicros();
+            case "keys":
+                return slotKeyCounts;
+            default:
+                throw new IllegalArgumentException("Unknown balance: " + balanceBy);
+        }
+    }
+
+    // Spreads INFO used_memory of each node over its slots by their key counts
+    private static long[] estimateSlotBytes(
+            SlotMap currentSlotMap,
+            long[] slotKeyCounts,
+            Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands) {
+        long[] keyCounts = currentSlotMap.sumByNode(slotKeyCounts);
+        double[] bytesPerKey = new double[keyCounts.length];
+        for (int nodeIndex = 0; nodeIndex < keyCounts.length; nodeIndex++) {
+            if (keyCounts[nodeIndex] > 0) {
+                String nodeId = currentSlotMap.getNodeId(nodeIndex);
+                long usedMemory = parseInfoLong(nodeIdToClusterCommands.get(nodeId).info("memory"), "used_memory");
+                bytesPerKey[nodeIndex] = (double) usedMemory / keyCounts[nodeIndex];
+            }
+        }
+
+        long[] slotBytes = new long[REDIS_SLOT_COUNT];
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (currentSlotMap.isAssigned(slot)) {
+                slotBytes[slot] = (long) (slotKeyCounts[slot] * bytesPerKey[currentSlotMap.getOwnerIndex(slot)]);
+            }
+        }
+        return slotBytes;
+    }
+
+    static long parseInfoLong(String info, String field) {
+        return info.lines()
+                .filter(line -> line.startsWith(field + ":"))
+                .map(line -> line.substring(field.length() + 1).trim())
+                .mapToLong(Long::parseLong)
+                .findFirst()
+                .orElse(0);
+    }
+
     public static void emptyClusterSlotAssignment(
-            List<RedisClusterNode> clusterMasterNodes,
-            List<List<Integer>> desiredSlots,
+            SlotMap desiredSlotMap,
             Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
             boolean commit) {
         System.out.println("Redis cluster is empty, assigning desired slots...");
-        for (int i = 0; i < clusterMasterNodes.size(); i++) {
-            RedisClusterNode redisClusterNode = clusterMasterNodes.get(i);
-            List<Integer> slotsForPartition = desiredSlots.get(i);
-            int from = slotsForPartition.get(0);
-            int to = slotsForPartition.get(slotsForPartition.size() - 1);
-            System.out.println("Adding slots " + from + "-" + to + " for node " + redisClusterNode.getNodeId());
-            if (commit) {
-                RedisCommands<byte[], byte[]> commands = nodeIdToClusterCommands.get(redisClusterNode.getNodeId());
-                commands.clusterAddSlots(slotsForPartition.stream().mapToInt(z -> z).toArray());
-            }
+        desiredSlotMap.forEachRange((from, to, nodeId) -> System.out.println("Adding slots " + from + "-" + to + " for node " + nodeId));
+        if (commit) {
+            addSlots(desiredSlotMap, nodeIdToClusterCommands);
         }
         System.out.println("Done\n");
     }
 
-    private static void printCountKeysInSlot(
-            Partitions clusterPartitions,
-            Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands) {
+    private static void printCountKeysInSlot(SlotMap currentSlotMap, SlotCensus slotCensus) {
         System.out.println("Number of keys in each slot");
-        IntStream.range(0, REDIS_SLOT_COUNT)
-                .forEachOrdered(slot -> {
-                    RedisClusterNode partitionBySlot = clusterPartitions.getPartitionBySlot(slot);
-                    String nodeId = partitionBySlot.getNodeId();
-                    long keys = nodeIdToClusterCommands.get(nodeId).clusterCountKeysInSlot(slot);
-                    System.out.println("Slot " + slot + " has " + keys + " keys on node " + nodeId);
-                    nodeIdToClusterCommands.entrySet().stream()
-                            .filter(entry -> !entry.getKey().equals(nodeId))
-                            .forEach(entry -> {
-                                long keyInEntry = nodeIdToClusterCommands.get(entry.getKey()).clusterCountKeysInSlot(slot);
-                                if (keyInEntry > 0) {
-                                    System.out.println("  ... slot " + slot + " has " + keys + " keys on unassigned node " + entry.getKey());
-                                }
-                            });
-                });
+        Map<Integer, List<SlotCensus.StrayKeys>> slotToStrayKeys = slotCensus.getStrayKeys().stream()
+                .collect(groupingBy(SlotCensus.StrayKeys::getSlot));
+        long[] slotKeyCounts = slotCensus.getSlotKeyCounts();
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            List<SlotCensus.StrayKeys> strayKeys = slotToStrayKeys.getOrDefault(slot, Collections.emptyList());
+            long keys = slotKeyCounts[slot] - strayKeys.stream().mapToLong(SlotCensus.StrayKeys::getKeyCount).sum();
+            System.out.println("Slot " + slot + " has " + keys + " keys on node " + currentSlotMap.getOwner(slot));
+            strayKeys.forEach(stray -> System.out.println(
+                    "  ... slot " + stray.getSlot() + " has " + stray.getKeyCount() + " keys on unassigned node " + stray.getNodeId()));
+        }
+        System.out.println();
     }
 
     public static void checkIfAllSlotsAreAssigned(
-            Partitions clusterPartitions,
-            Map<Integer, String> slotToDesiredNodeIdMap,
+            SlotMap currentSlotMap,
+            SlotMap desiredSlotMap,
             Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
             boolean commit) {
         System.out.println("Checking if all slots are assigned...");
-        IntStream.range(0, REDIS_SLOT_COUNT)
-                .forEachOrdered(i -> {
-                    RedisClusterNode partitionBySlot = clusterPartitions.getPartitionBySlot(i);
-                    if (partitionBySlot == null) {
-                        String desiredNodeId = slotToDesiredNodeIdMap.get(i);
-                        System.out.println("Slot " + i + " is not assigned, will be assigned node " + desiredNodeId);
-                        if (commit) {
-                            nodeIdToClusterCommands.get(desiredNodeId).clusterAddSlots(i);
-                        }
-                    }
-                });
+        SlotMap unassignedSlotMap = currentSlotMap.unassignedIn(desiredSlotMap);
+        unassignedSlotMap.forEachRange((from, to, nodeId) ->
+                System.out.println("Slots " + from + "-" + to + " are not assigned, will be assigned node " + nodeId));
+        if (commit) {
+            addSlots(unassignedSlotMap, nodeIdToClusterCommands);
+        }
         System.out.println("Done\n");
     }
 
-    private static class ReshardAction {
-        public String fromNodeId;
-        public int slot;
-        public String toNodeId;
-
-        ReshardAction(String fromNodeId, int slot, String toNodeId) {
-            this.fromNodeId = fromNodeId;
-            this.slot = slot;
-            this.toNodeId = toNodeId;
-        }
-
-        public String getFromNodeId() {
-            return fromNodeId;
-        }
-
-        public int getSlot() {
-            return slot;
-        }
-
-        public String getToNodeId() {
-            return toNodeId;
-        }
+    // One CLUSTER ADDSLOTSRANGE call per node, or batched ADDSLOTS calls on servers older than Redis 7
+    private static void addSlots(SlotMap slotMap, Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands) {
+        slotMap.getRangesByNode().forEach((nodeId, slotRanges) -> {
+            RedisCommands<byte[], byte[]> commands = nodeIdToClusterCommands.get(nodeId);
+            CommandArgs<byte[], byte[]> args = new CommandArgs<>(ByteArrayCodec.INSTANCE).add("ADDSLOTSRANGE");
+            slotRanges.forEach(slotRange -> args.add(slotRange[0]).add(slotRange[1]));
+            try {
+                commands.dispatch(CommandType.CLUSTER, new StatusOutput<>(ByteArrayCodec.INSTANCE), args);
+            } catch (RedisCommandExecutionException e) {
+                if (e.getMessage() == null || !e.getMessage().toLowerCase().contains("unknown subcommand")) {
+                    throw e;
+                }
+                int[] slots = slotRanges.stream()
+                        .flatMapToInt(slotRange -> IntStream.rangeClosed(slotRange[0], slotRange[1]))
+                        .toArray();
+                for (int from = 0; from < slots.length; from += ADD_SLOTS_BATCH_SIZE) {
+                    commands.clusterAddSlots(Arrays.copyOfRange(slots, from, Math.min(slots.length, from + ADD_SLOTS_BATCH_SIZE)));
+                }
+            }
+        });
     }
 
     public static void reshardSlots(
+            ConnectionManager connectionManager,
             Partitions clusterPartitions,
-            Map<Integer, String> slotToDesiredNodeIdMap,
+            SlotMap currentSlotMap,
+            SlotMap desiredSlotMap,
             Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
-            int migrationBatchSize,
+            MigrationSettings migrationSettings,
+            ThrottleSettings throttleSettings,
+            MigrationJournal migrationJournal,
+            SlotCensus slotCensus,
+            long[] slotPriorities,
+            MigrationMetrics migrationMetrics,
+            long progressIntervalSeconds,
             boolean commit) {
         System.out.println("Checking if all slots are assigned to desired nodes...");
 
-        List<ReshardAction> reshardActions = new ArrayList<>();
-        IntStream.range(0, REDIS_SLOT_COUNT)
-                .forEachOrdered(slot -> {
-                    RedisClusterNode currentPartition = clusterPartitions.getPartitionBySlot(slot);
-                    String desiredNodeId = slotToDesiredNodeIdMap.get(slot);
-                    RedisClusterNode desiredPartition = clusterPartitions.getPartitionByNodeId(desiredNodeId);
-                    if (currentPartition != desiredPartition) {
-                        reshardActions.add(new ReshardAction(currentPartition.getNodeId(), slot, desiredNodeId));
-                    }
-                });
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands = nodeIdToClusterCommands.entrySet().stream()
+                .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().getStatefulConnection().async()));
 
+        // Slots left half-migrated (e.g. by an interrupted run) are finished before anything else. With a journal
+        // slots whose owner already changed are also closed, e.g. after a crash between the SETSLOT NODE calls
+        Set<Integer> openSlots = new HashSet<>();
+        SlotMap plannedSlotMap = desiredSlotMap;
+        if (migrationJournal != null) {
+            plannedSlotMap = desiredSlotMap.copy();
+            openSlots.addAll(finishOpenSlots(currentSlotMap, plannedSlotMap, nodeIdToAsyncCommands, commit));
+        } else {
+            SlotCensus.findOpenSlots(nodeIdToAsyncCommands).forEach(openSlot -> {
+                System.out.println(openSlot);
+                openSlots.add(openSlot.getSlot());
+            });
+        }
+
+        List<ReshardAction> reshardActions = currentSlotMap.movesTo(plannedSlotMap);
         if (reshardActions.size() == 0) {
+            if (migrationJournal != null) {
+                migrationJournal.close();
+            }
             System.out.println("No actions needed. Done.\n");
             return;
         }
-
-        Map<String, List<ReshardAction>> nodeIdToRemainingReshardActionsMap = reshardActions.stream()
-                .collect(groupingBy(ReshardAction::getFromNodeId));
-        ReshardAction currentAction = reshardActions.get(0);
-        while (true) {
-            String fromNodeId = currentAction.getFromNodeId();
-            int slot = currentAction.getSlot();
-            String toNodeId = currentAction.getToNodeId();
-            moveSlot(clusterPartitions, slotToDesiredNodeIdMap, nodeIdToClusterCommands, slot, migrationBatchSize, commit);
-            nodeIdToRemainingReshardActionsMap.get(fromNodeId).remove(currentAction);
-            reshardActions.remove(currentAction);
-            List<ReshardAction> remainingReshardActionsForToNodeId = nodeIdToRemainingReshardActionsMap.get(toNodeId);
-            if (remainingReshardActionsForToNodeId != null && remainingReshardActionsForToNodeId.size() > 0) {
-                currentAction = remainingReshardActionsForToNodeId.iterator().next();
-            } else if (reshardActions.size() > 0) {
-                currentAction = reshardActions.iterator().next();
-            } else {
-                break;
+        if (slotPriorities != null) {
+            // Heaviest slots first, so the hottest ones leave an overloaded node early
+            reshardActions.sort(heaviestFirst(slotPriorities));
+        }
+        long plannedKeyCount = slotCensus == null
+                ? -1
+                : reshardActions.stream().mapToLong(reshardAction -> slotCensus.getSlotKeyCounts()[reshardAction.getSlot()]).sum();
+        migrationMetrics.planned(reshardActions.size(), plannedKeyCount);
+
+        Map<Boolean, List<ReshardAction>> reshardActionsByPriority = reshardActions.stream()
+                .collect(partitioningBy(reshardAction -> openSlots.contains(reshardAction.getSlot())
+                        || (migrationJournal != null && migrationJournal.isInProgress(reshardAction.getSlot()))));
+
+        SlotOwnershipPropagator slotOwnershipPropagator = new SlotOwnershipPropagator(
+                nodeIdToAsyncCommands, migrationSettings.getPropagationQuorum());
+        // The throttle samples over its own connections, so it measures the nodes and not our queued migrations
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToSampleCommands = throttleSettings.isFeedbackEnabled()
+                ? connectionManager.sampleAll(nodeIdToClusterCommands.keySet())
+                : Collections.emptyMap();
+        ProgressReporter progressReporter = commit ? new ProgressReporter(migrationMetrics, progressIntervalSeconds) : null;
+        try (MigrationThrottle migrationThrottle = new MigrationThrottle(throttleSettings, nodeIdToSampleCommands, migrationMetrics)) {
+            SlotMigrator slotMigrator = new SlotMigrator(
+                    clusterPartitions,
+                    nodeIdToClusterCommands, migrationSettings,
+                    migrationThrottle,
+                    migrationJournal,
+                    slotOwnershipPropagator,
+                    migrationMetrics,
+                    commit);
+            MigrationScheduler migrationScheduler = new MigrationScheduler(
+                    migrationSettings.getParallelism(), migrationSettings.getParallelismPerNode());
+            for (List<ReshardAction> actions : List.of(reshardActionsByPriority.get(true), reshardActionsByPriority.get(false))) {
+                migrationScheduler.run(actions, slotPriorities, slotMigrator::moveSlot);
+            }
+            slotOwnershipPropagator.awaitAll();
+        } finally {
+            if (progressReporter != null) {
+                progressReporter.close();
+            }
+            if (migrationJournal != null) {
+                migrationJournal.close();
             }
         }
         System.out.println("Done\n");
     }
 
-    private static void moveSlot(
-            Partitions clusterPartitions,
-            Map<Integer, String> slotToDesiredNodeIdMap,
-            Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
-            int slot,
-            int migrationBatchSize,
-            boolean commit) {
-        RedisClusterNode currentPartition = clusterPartitions.getPartitionBySlot(slot);
-        String desiredNodeId = slotToDesiredNodeIdMap.get(slot);
-        RedisClusterNode desiredPartition = clusterPartitions.getPartitionByNodeId(desiredNodeId);
-        RedisURI desiredPartitionUri = desiredPartition.getUri();
-        if (currentPartition != desiredPartition) {
-            String currentNodeId = currentPartition.getNodeId();
-            System.out.println("Slot " + slot + " is not on desired node, currently on " + currentNodeId + ", but should be on " + desiredNodeId);
-            RedisCommands<byte[], byte[]> desiredClusterCommands = nodeIdToClusterCommands.get(desiredNodeId);
-            RedisCommands<byte[], byte[]> currentClusterCommands = nodeIdToClusterCommands.get(currentNodeId);
-            if (commit) {
-                desiredClusterCommands.clusterSetSlotImporting(slot, currentNodeId);
-                currentClusterCommands.clusterSetSlotMigrating(slot, desiredNodeId);
-            }
+    static Comparator<ReshardAction> heaviestFirst(long[] slotPriorities) {
+        return Comparator.comparingLong((ReshardAction reshardAction) -> slotPriorities[reshardAction.getSlot()]).reversed();
+    }
 
-            System.out.println("Moving keys in slot " + slot + " to new node, total key count: " + currentClusterCommands.clusterCountKeysInSlot(slot));
-            if (commit) {
-                List<byte[]> keys = currentClusterCommands.clusterGetKeysInSlot(slot, migrationBatchSize);
-                while (!keys.isEmpty()) {
-                    System.out.println("Moving keys in slot " + slot + " to new node, key count: " + keys.size());
-                    currentClusterCommands.migrate(desiredPartitionUri.getHost(), desiredPartitionUri.getPort(), 0, 60_000, MigrateArgs.Builder.keys(keys).replace());
-                    keys = currentClusterCommands.clusterGetKeysInSlot(slot, migrationBatchSize);
+    // Slots whose keys still have to move become moves to the node they were migrating to; slots that already moved
+    // but were left open on a node are handed to their owner right away
+    static Set<Integer> finishOpenSlots(
+            SlotMap currentSlotMap,
+            SlotMap desiredSlotMap,
+            Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands,
+            boolean commit) {
+        Set<Integer> openSlots = new HashSet<>();
+        for (OpenSlot openSlot : SlotCensus.findOpenSlots(nodeIdToAsyncCommands)) {
+            int slot = openSlot.getSlot();
+            String sourceNodeId = openSlot.isMigrating() ? openSlot.getNodeId() : openSlot.getPeerNodeId();
+            String targetNodeId = openSlot.isMigrating() ? openSlot.getPeerNodeId() : openSlot.getNodeId();
+            String ownerNodeId = currentSlotMap.getOwner(slot);
+            System.out.println(openSlot);
+            if (sourceNodeId.equals(ownerNodeId) && nodeIdToAsyncCommands.containsKey(targetNodeId)) {
+                desiredSlotMap.setOwner(slot, targetNodeId);
+            } else if (ownerNodeId != null) {
+                System.out.println("Slot " + slot + " is already owned by node " + ownerNodeId + ", closing it on node " + openSlot.getNodeId());
+                if (commit) {
+                    LettuceFutures.awaitOrCancel(nodeIdToAsyncCommands.get(openSlot.getNodeId()).clusterSetSlotNode(slot, ownerNodeId),
+                            TIMEOUT_SECONDS, TimeUnit.SECONDS);
                 }
-
-                desiredClusterCommands.clusterSetSlotNode(slot, desiredNodeId);
-                currentClusterCommands.clusterSetSlotNode(slot, desiredNodeId);
-                nodeIdToClusterCommands.values()
-                        .forEach(clusterCommands -> clusterCommands.clusterSetSlotNode(slot, desiredNodeId));
-                // desiredClusterCommands.clusterSetSlotStable(slot);
+            } else {
+                System.out.println("Slot " + slot + " has no owner, leaving it for --assign");
             }
+            openSlots.add(slot);
         }
+        return openSlots;
     }
 
-    private static List<List<Integer>> createDesiredSlots(int nodeCount) {
+    // Equal contiguous ranges in node order, the last node also takes the remainder
+    static SlotMap createDesiredSlots(List<String> nodeIds) {
+        SlotMap desiredSlotMap = new SlotMap(nodeIds);
+        int nodeCount = desiredSlotMap.getNodeCount();
         int slotCountPerNode = REDIS_SLOT_COUNT / nodeCount;
-        return IntStream.range(0, nodeCount)
-                .boxed()
-                .map(nodeNumber ->
-                        IntStream.range(
-                                        slotCountPerNode * nodeNumber,
-                                        nodeNumber == (nodeCount - 1) ? REDIS_SLOT_COUNT : slotCountPerNode * (nodeNumber + 1))
-                                .boxed().collect(toList()))
-                .collect(toList());
-    }
-
-    private static void writeTestData(RedisAdvancedClusterCommands<byte[], byte[]> commands, int count) {
-        System.out.println("Writing test data...");
-        IntStream.range(0, count)
-                .boxed()
-                .forEach(i ->
-                        commands.set(String.valueOf(i).getBytes(), String.valueOf(i).getBytes()));
-        System.out.println("Done\n");
-    }
-
-    private static void deleteTestData(RedisAdvancedClusterCommands<byte[], byte[]> commands, int count) {
-        System.out.println("Deleting test data...");
-        IntStream.range(0, count)
-                .boxed()
-                .forEach(i ->
-                        commands.del(String.valueOf(i).getBytes()));
-        System.out.println("Done\n");
+        for (int nodeNumber = 0; nodeNumber < nodeCount; nodeNumber++) {
+            int to = nodeNumber == (nodeCount - 1) ? REDIS_SLOT_COUNT : slotCountPerNode * (nodeNumber + 1);
+            desiredSlotMap.setOwnerIndex(slotCountPerNode * nodeNumber, to - 1, nodeNumber);
+        }
+        return desiredSlotMap;
     }
 
     private static void printHelp(Options options) {
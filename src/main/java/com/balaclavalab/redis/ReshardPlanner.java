@@ -0,0 +1,225 @@
+package com.balaclavalab.redis;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+
+/**
+ * Plans a balanced slot assignment that keeps as many slots as possible on their current node. Slots of nodes
+ * outside of {@code nodeIds} (excluded or unknown) and unassigned slots are always moved.
+ */
+public class ReshardPlanner {
+
+    // Slots are sorted by a key or weight packed together with the slot number into a single long
+    private static final int SLOT_BITS = 14;
+    private static final int HOT_SLOT_FACTOR = 10;
+
+    // Nodes above their share of slots give away the slots with the fewest keys, freed slots go to nodes below their
+    // share, preferring the node that owns the neighbouring slot so ranges stay contiguous where possible
+    public static SlotMap planMinimalMovement(SlotMap currentSlotMap, List<String> nodeIds, long[] slotKeyCounts) {
+        SlotMap desiredSlotMap = currentSlotMap.withSameNodes();
+        int[] plannedNodes = addNodes(desiredSlotMap, nodeIds);
+        int nodeCount = desiredSlotMap.getNodeCount();
+        int[] slotCounts = new int[nodeCount];
+        int[] quotas = new int[nodeCount];
+        boolean[] planned = new boolean[nodeCount];
+        for (int nodeIndex : plannedNodes) {
+            planned[nodeIndex] = true;
+        }
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            int owner = currentSlotMap.getOwnerIndex(slot);
+            if (owner != SlotMap.UNASSIGNED && planned[owner]) {
+                slotCounts[owner]++;
+            }
+        }
+
+        // Nodes that already hold the most slots keep the remainder slots
+        Integer[] nodesBySlotCount = Arrays.stream(plannedNodes).boxed().toArray(Integer[]::new);
+        Arrays.sort(nodesBySlotCount, (a, b) -> Integer.compare(slotCounts[b], slotCounts[a]));
+        for (int i = 0; i < nodesBySlotCount.length; i++) {
+            quotas[nodesBySlotCount[i]] = REDIS_SLOT_COUNT / plannedNodes.length + (i < REDIS_SLOT_COUNT % plannedNodes.length ? 1 : 0);
+        }
+
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            int owner = currentSlotMap.getOwnerIndex(slot);
+            if (owner != SlotMap.UNASSIGNED && planned[owner]) {
+                desiredSlotMap.setOwnerIndex(slot, owner);
+            }
+        }
+
+        long[] sortKeys = new long[REDIS_SLOT_COUNT];
+        for (int nodeIndex : plannedNodes) {
+            int surplus = slotCounts[nodeIndex] - quotas[nodeIndex];
+            if (surplus <= 0) {
+                continue;
+            }
+            // Fewest keys first, higher slots first on ties
+            int slotsOfNode = 0;
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                if (desiredSlotMap.getOwnerIndex(slot) == nodeIndex) {
+                    long keyCount = slotKeyCounts == null ? 0 : slotKeyCounts[slot];
+                    sortKeys[slotsOfNode++] = pack(keyCount, REDIS_SLOT_COUNT - 1 - slot);
+                }
+            }
+            Arrays.sort(sortKeys, 0, slotsOfNode);
+            for (int i = 0; i < surplus; i++) {
+                desiredSlotMap.setOwnerIndex(REDIS_SLOT_COUNT - 1 - unpackSlot(sortKeys[i]), SlotMap.UNASSIGNED);
+            }
+            slotCounts[nodeIndex] = quotas[nodeIndex];
+        }
+
+        // Deficits only shrink, so the first node with a deficit never moves backwards
+        int firstWithDeficit = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (desiredSlotMap.isAssigned(slot)) {
+                continue;
+            }
+            int neighbour = slot > 0 ? desiredSlotMap.getOwnerIndex(slot - 1) : SlotMap.UNASSIGNED;
+            int receiver;
+            if (neighbour != SlotMap.UNASSIGNED && planned[neighbour] && slotCounts[neighbour] < quotas[neighbour]) {
+                receiver = neighbour;
+            } else {
+                while (slotCounts[plannedNodes[firstWithDeficit]] >= quotas[plannedNodes[firstWithDeficit]]) {
+                    firstWithDeficit++;
+                }
+                receiver = plannedNodes[firstWithDeficit];
+            }
+            desiredSlotMap.setOwnerIndex(slot, receiver);
+            slotCounts[receiver]++;
+        }
+        return desiredSlotMap;
+    }
+
+    // Balances the sum of slot weights (keys, bytes, ...) instead of the number of slots per node; slots without
+    // weight are used to even out slot counts
+    public static SlotMap planWeighted(SlotMap currentSlotMap, List<String> nodeIds, long[] slotWeights) {
+        return planWeighted(currentSlotMap, nodeIds, slotWeights, false);
+    }
+
+    // When spreading hot slots (over HOT_SLOT_FACTOR times the mean slot weight), no node keeps or gets more than
+    // its share of them, even if that leaves the sum of weights less even
+    public static SlotMap planWeighted(SlotMap currentSlotMap, List<String> nodeIds, long[] slotWeights, boolean spreadHotSlots) {
+        SlotMap desiredSlotMap = currentSlotMap.withSameNodes();
+        int[] plannedNodes = addNodes(desiredSlotMap, nodeIds);
+        int nodeCount = desiredSlotMap.getNodeCount();
+        long[] loads = new long[nodeCount];
+        int[] slotCounts = new int[nodeCount];
+        int[] hotSlotCounts = new int[nodeCount];
+        boolean[] planned = new boolean[nodeCount];
+        for (int nodeIndex : plannedNodes) {
+            planned[nodeIndex] = true;
+        }
+
+        long totalWeight = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            totalWeight += slotWeights[slot];
+        }
+        boolean[] hot = new boolean[REDIS_SLOT_COUNT];
+        int hotSlotCount = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT && spreadHotSlots; slot++) {
+            hot[slot] = slotWeights[slot] > HOT_SLOT_FACTOR * totalWeight / REDIS_SLOT_COUNT;
+            hotSlotCount += hot[slot] ? 1 : 0;
+        }
+        int hotSlotQuota = (hotSlotCount + plannedNodes.length - 1) / plannedNodes.length;
+
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            int owner = currentSlotMap.getOwnerIndex(slot);
+            if (owner != SlotMap.UNASSIGNED && planned[owner]) {
+                desiredSlotMap.setOwnerIndex(slot, owner);
+                loads[owner] += slotWeights[slot];
+                slotCounts[owner]++;
+            }
+        }
+
+        // Overloaded nodes give away their heaviest slots as long as that brings them closer to the target load
+        double targetLoad = (double) totalWeight / plannedNodes.length;
+        long[] sortKeys = new long[REDIS_SLOT_COUNT];
+        for (int nodeIndex : plannedNodes) {
+            int slotsOfNode = 0;
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                if (desiredSlotMap.getOwnerIndex(slot) == nodeIndex) {
+                    sortKeys[slotsOfNode++] = pack(slotWeights[slot], REDIS_SLOT_COUNT - 1 - slot);
+                }
+            }
+            Arrays.sort(sortKeys, 0, slotsOfNode);
+            for (int i = slotsOfNode - 1; i >= 0; i--) {
+                int slot = REDIS_SLOT_COUNT - 1 - unpackSlot(sortKeys[i]);
+                boolean overHotSlotQuota = hot[slot] && hotSlotCounts[nodeIndex] >= hotSlotQuota;
+                if (overHotSlotQuota || (loads[nodeIndex] - targetLoad >= slotWeights[slot] / 2.0 && slotWeights[slot] > 0)) {
+                    desiredSlotMap.setOwnerIndex(slot, SlotMap.UNASSIGNED);
+                    loads[nodeIndex] -= slotWeights[slot];
+                    slotCounts[nodeIndex]--;
+                } else if (hot[slot]) {
+                    hotSlotCounts[nodeIndex]++;
+                }
+            }
+        }
+
+        // Heaviest free slots first, each to the least loaded node (fewest slots on ties)
+        int freeSlotCount = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (!desiredSlotMap.isAssigned(slot)) {
+                sortKeys[freeSlotCount++] = pack(slotWeights[slot], REDIS_SLOT_COUNT - 1 - slot);
+            }
+        }
+        Arrays.sort(sortKeys, 0, freeSlotCount);
+        for (int i = freeSlotCount - 1; i >= 0; i--) {
+            int slot = REDIS_SLOT_COUNT - 1 - unpackSlot(sortKeys[i]);
+            int receiver = SlotMap.UNASSIGNED;
+            for (int nodeIndex : plannedNodes) {
+                if (hot[slot] && hotSlotCounts[nodeIndex] >= hotSlotQuota) {
+                    continue;
+                }
+                if (receiver == SlotMap.UNASSIGNED
+                        || loads[nodeIndex] < loads[receiver]
+                        || (loads[nodeIndex] == loads[receiver] && slotCounts[nodeIndex] < slotCounts[receiver])) {
+                    receiver = nodeIndex;
+                }
+            }
+            desiredSlotMap.setOwnerIndex(slot, receiver);
+            loads[receiver] += slotWeights[slot];
+            slotCounts[receiver]++;
+            hotSlotCounts[receiver] += hot[slot] ? 1 : 0;
+        }
+
+        // Weightless slots never move above, so they even out slot counts instead: nodes above their share of
+        // slots give them, highest first, to the node with the fewest slots while it is below its share
+        int slotQuota = (REDIS_SLOT_COUNT + plannedNodes.length - 1) / plannedNodes.length;
+        for (int slot = REDIS_SLOT_COUNT - 1; slot >= 0; slot--) {
+            int owner = desiredSlotMap.getOwnerIndex(slot);
+            if (slotWeights[slot] != 0 || slotCounts[owner] <= slotQuota) {
+                continue;
+            }
+            int receiver = plannedNodes[0];
+            for (int nodeIndex : plannedNodes) {
+                if (slotCounts[nodeIndex] < slotCounts[receiver]) {
+                    receiver = nodeIndex;
+                }
+            }
+            if (slotCounts[receiver] >= slotQuota) {
+                break;
+            }
+            desiredSlotMap.setOwnerIndex(slot, receiver);
+            slotCounts[owner]--;
+            slotCounts[receiver]++;
+        }
+        return desiredSlotMap;
+    }
+
+    private static int[] addNodes(SlotMap slotMap, List<String> nodeIds) {
+        if (nodeIds.isEmpty()) {
+            throw new IllegalArgumentException("No nodes to plan slots for");
+        }
+        return nodeIds.stream().mapToInt(slotMap::addNode).toArray();
+    }
+
+    // Weights above 2^49 (half a petabyte per slot) would overflow
+    private static long pack(long value, int slot) {
+        return (value << SLOT_BITS) | slot;
+    }
+
+    private static int unpackSlot(long packed) {
+        return (int) (packed & ((1 << SLOT_BITS) - 1));
+    }
+}
@@ -0,0 +1,206 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+
+/**
+ * Number of keys in each slot. Every node is queried at the same time with pipelined CLUSTER COUNTKEYSINSLOT calls,
+ * asking only the slot owner and nodes that have the slot in MIGRATING/IMPORTING state, or every master when a full
+ * scan is requested. Key counts belong to slots, not nodes, so a recent snapshot stays valid after a reshard.
+ */
+public class SlotCensus {
+
+    private static final int SNAPSHOT_MAGIC = 0x424c4353;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final long[] slotKeyCounts;
+    private final List<StrayKeys> strayKeys;
+    private final long createdAtMillis;
+
+    private SlotCensus(long[] slotKeyCounts, List<StrayKeys> strayKeys, long createdAtMillis) {
+        this.slotKeyCounts = slotKeyCounts;
+        this.strayKeys = strayKeys;
+        this.createdAtMillis = createdAtMillis;
+    }
+
+    public long[] getSlotKeyCounts() {
+        return slotKeyCounts;
+    }
+
+    public List<StrayKeys> getStrayKeys() {
+        return strayKeys;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public static SlotCensus loadOrScan(
+            Path snapshotPath,
+            Duration maxSnapshotAge,
+            SlotMap currentSlotMap,
+            Map<String, RedisCommands<byte[], byte[]>> masterNodeIdToClusterCommands,
+            boolean fullScan) {
+        if (snapshotPath != null && Files.exists(snapshotPath)) {
+            SlotCensus snapshot = load(snapshotPath);
+            if (snapshot == null) {
+                System.out.println("Ignoring slot key counts from " + snapshotPath + ", not " + REDIS_SLOT_COUNT + " slots\n");
+            } else {
+                long ageMillis = System.currentTimeMillis() - snapshot.getCreatedAtMillis();
+                if (ageMillis <= maxSnapshotAge.toMillis()) {
+                    System.out.println("Using slot key counts from " + snapshotPath + " (" + ageMillis / 1000 + "s old)\n");
+                    return snapshot;
+                }
+            }
+        }
+
+        SlotCensus census = scan(currentSlotMap, masterNodeIdToClusterCommands, fullScan);
+        if (snapshotPath != null) {
+            census.save(snapshotPath);
+        }
+        return census;
+    }
+
+    public static SlotCensus scan(
+            SlotMap currentSlotMap,
+            Map<String, RedisCommands<byte[], byte[]>> masterNodeIdToClusterCommands,
+            boolean fullScan) {
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands = new HashMap<>();
+        masterNodeIdToClusterCommands.forEach((nodeId, commands) ->
+                nodeIdToAsyncCommands.put(nodeId, commands.getStatefulConnection().async()));
+
+        Map<Integer, Set<String>> slotToOpenNodeIds = new HashMap<>();
+        if (!fullScan) {
+            findOpenSlots(nodeIdToAsyncCommands).forEach(openSlot -> {
+                Set<String> openNodeIds = slotToOpenNodeIds.computeIfAbsent(openSlot.getSlot(), slot -> new HashSet<>());
+                openNodeIds.add(openSlot.getNodeId());
+                openNodeIds.add(openSlot.getPeerNodeId());
+            });
+        }
+
+        // All commands are sent before any reply is awaited, so every node works through its queue at the same time
+        Map<String, List<RedisFuture<Long>>> nodeIdToKeyCounts = new HashMap<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> {
+            int nodeIndex = currentSlotMap.indexOf(nodeId);
+            List<RedisFuture<Long>> keyCounts = new ArrayList<>(Collections.nCopies(REDIS_SLOT_COUNT, null));
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                Set<String> openNodeIds = slotToOpenNodeIds.getOrDefault(slot, Collections.emptySet());
+                if (fullScan || isOwner(currentSlotMap, slot, nodeIndex) || openNodeIds.contains(nodeId)) {
+                    keyCounts.set(slot, asyncCommands.clusterCountKeysInSlot(slot));
+                }
+            }
+            nodeIdToKeyCounts.put(nodeId, keyCounts);
+        });
+
+        long[] slotKeyCounts = new long[REDIS_SLOT_COUNT];
+        List<StrayKeys> strayKeys = new ArrayList<>();
+        nodeIdToKeyCounts.forEach((nodeId, keyCounts) -> {
+            int nodeIndex = currentSlotMap.indexOf(nodeId);
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                if (keyCounts.get(slot) == null) {
+                    continue;
+                }
+                long keyCount = LettuceFutures.awaitOrCancel(keyCounts.get(slot), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                slotKeyCounts[slot] += keyCount;
+                if (keyCount > 0 && !isOwner(currentSlotMap, slot, nodeIndex)) {
+                    strayKeys.add(new StrayKeys(slot, nodeId, keyCount));
+                }
+            }
+        });
+        return new SlotCensus(slotKeyCounts, strayKeys, System.currentTimeMillis());
+    }
+
+    private static boolean isOwner(SlotMap slotMap, int slot, int nodeIndex) {
+        return nodeIndex != SlotMap.UNASSIGNED && slotMap.getOwnerIndex(slot) == nodeIndex;
+    }
+
+    public static List<OpenSlot> findOpenSlots(Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands) {
+        Map<String, RedisFuture<String>> nodeIdToClusterNodes = new HashMap<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> nodeIdToClusterNodes.put(nodeId, asyncCommands.clusterNodes()));
+        List<OpenSlot> openSlots = new ArrayList<>();
+        nodeIdToClusterNodes.values().forEach(clusterNodes ->
+                openSlots.addAll(OpenSlot.parse(LettuceFutures.awaitOrCancel(clusterNodes, TIMEOUT_SECONDS, TimeUnit.SECONDS))));
+        return openSlots;
+    }
+
+    // Null when the snapshot does not hold a count for every slot, it is as good as stale then
+    public static SlotCensus load(Path snapshotPath) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(snapshotPath)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IllegalArgumentException("Not a slot census snapshot: " + snapshotPath);
+            }
+            long createdAtMillis = in.readLong();
+            if (in.readInt() != REDIS_SLOT_COUNT) {
+                return null;
+            }
+            long[] slotKeyCounts = new long[REDIS_SLOT_COUNT];
+            for (int slot = 0; slot < slotKeyCounts.length; slot++) {
+                slotKeyCounts[slot] = in.readLong();
+            }
+            return new SlotCensus(slotKeyCounts, Collections.emptyList(), createdAtMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read slot census snapshot " + snapshotPath, e);
+        }
+    }
+
+    public void save(Path snapshotPath) {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(snapshotPath)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(createdAtMillis);
+            out.writeInt(slotKeyCounts.length);
+            for (long slotKeyCount : slotKeyCounts) {
+                out.writeLong(slotKeyCount);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write slot census snapshot " + snapshotPath, e);
+        }
+    }
+
+    public static class StrayKeys {
+        private final int slot;
+        private final String nodeId;
+        private final long keyCount;
+
+        StrayKeys(int slot, String nodeId, long keyCount) {
+            this.slot = slot;
+            this.nodeId = nodeId;
+            this.keyCount = keyCount;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public long getKeyCount() {
+            return keyCount;
+        }
+    }
+}
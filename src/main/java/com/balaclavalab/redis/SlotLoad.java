@@ -0,0 +1,272 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.output.ArrayOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+
+/**
+ * CPU time spent on each slot during a sampling window. Read from CLUSTER SLOT-STATS (Redis 8, with
+ * {@code cluster-slot-stats-enabled yes}) when every master reports cpu-usec. Otherwise the CPU time of each node's
+ * commands from INFO commandstats is spread over its slots by key count times how hot a sample of the slot's keys
+ * is: OBJECT FREQ under an LFU maxmemory-policy, how recently they were used (OBJECT IDLETIME) under any other.
+ */
+public class SlotLoad {
+
+    private static final long TIMEOUT_SECONDS = 60;
+    // Commands the tool itself sends while sampling do not count as load
+    private static final List<String> OWN_COMMANDS = List.of("cluster", "object", "info", "config", "ping", "latency", "command");
+
+    private final long[] slotCpuMicros;
+    private final String source;
+
+    private SlotLoad(long[] slotCpuMicros, String source) {
+        this.slotCpuMicros = slotCpuMicros;
+        this.source = source;
+    }
+
+    public long[] getSlotCpuMicros() {
+        return slotCpuMicros;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public static SlotLoad measure(
+            SlotMap currentSlotMap,
+            long[] slotKeyCounts,
+            Map<String, RedisCommands<byte[], byte[]>> masterNodeIdToClusterCommands,
+            LoadSettings loadSettings) {
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands = new HashMap<>();
+        masterNodeIdToClusterCommands.forEach((nodeId, commands) ->
+                nodeIdToAsyncCommands.put(nodeId, commands.getStatefulConnection().async()));
+        System.out.println("Measuring slot load for " + loadSettings.getSampleSeconds() + "s...");
+
+        long[] statsBefore = readSlotStats(nodeIdToAsyncCommands);
+        SlotLoad slotLoad;
+        if (statsBefore != null) {
+            sleep(TimeUnit.SECONDS.toMillis(loadSettings.getSampleSeconds()));
+            long[] statsAfter = readSlotStats(nodeIdToAsyncCommands);
+            if (statsAfter == null) {
+                throw new IllegalStateException("CLUSTER SLOT-STATS stopped reporting cpu-usec while measuring slot load");
+            }
+            long[] slotCpuMicros = new long[REDIS_SLOT_COUNT];
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                slotCpuMicros[slot] = Math.max(statsAfter[slot] - statsBefore[slot], 0);
+            }
+            slotLoad = new SlotLoad(slotCpuMicros, "CLUSTER SLOT-STATS");
+        } else {
+            slotLoad = sample(currentSlotMap, slotKeyCounts, nodeIdToAsyncCommands, loadSettings);
+        }
+
+        long totalCpuMicros = 0;
+        for (long cpuMicros : slotLoad.slotCpuMicros) {
+            totalCpuMicros += cpuMicros;
+        }
+        System.out.println("Slot load from " + slotLoad.source + ": " + totalCpuMicros / loadSettings.getSampleSeconds()
+                + " CPU microseconds per second\n");
+        return slotLoad;
+    }
+
+    // Cumulative cpu-usec of every slot, null when a master does not support CLUSTER SLOT-STATS or does not track CPU
+    private static long[] readSlotStats(Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands) {
+        List<RedisFuture<List<Object>>> replies = new ArrayList<>();
+        nodeIdToAsyncCommands.values().forEach(asyncCommands -> replies.add(asyncCommands.dispatch(
+                CommandType.CLUSTER,
+                new ArrayOutput<>(ByteArrayCodec.INSTANCE),
+                new CommandArgs<>(ByteArrayCodec.INSTANCE).add("SLOT-STATS").add("SLOTSRANGE").add(0).add(REDIS_SLOT_COUNT - 1))));
+
+        long[] slotCpuMicros = new long[REDIS_SLOT_COUNT];
+        boolean tracksCpu = true;
+        for (RedisFuture<List<Object>> reply : replies) {
+            List<Object> slotStats;
+            try {
+                slotStats = LettuceFutures.awaitOrCancel(reply, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (RedisCommandExecutionException e) {
+                tracksCpu = false;
+                continue;
+            }
+            // [[slot, [key-count, n, cpu-usec, n, ...]], ...]
+            for (Object entry : slotStats) {
+                List<?> slotEntry = (List<?>) entry;
+                int slot = ((Long) slotEntry.get(0)).intValue();
+                List<?> stats = (List<?>) slotEntry.get(1);
+                Long cpuMicros = null;
+                for (int i = 0; i + 1 < stats.size(); i += 2) {
+                    if ("cpu-usec".equals(new String((byte[]) stats.get(i), StandardCharsets.US_ASCII))) {
+                        cpuMicros = (Long) stats.get(i + 1);
+                    }
+                }
+                if (cpuMicros == null) {
+                    tracksCpu = false;
+                    break;
+                }
+                slotCpuMicros[slot] = cpuMicros;
+            }
+        }
+        return tracksCpu ? slotCpuMicros : null;
+    }
+
+    private static SlotLoad sample(
+            SlotMap currentSlotMap,
+            long[] slotKeyCounts,
+            Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands,
+            LoadSettings loadSettings) {
+        long startNanos = System.nanoTime();
+        Map<String, RedisFuture<String>> nodeIdToStatsBefore = new HashMap<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> nodeIdToStatsBefore.put(nodeId, asyncCommands.info("commandstats")));
+        Map<String, Long> nodeIdToCpuMicrosBefore = new HashMap<>();
+        nodeIdToStatsBefore.forEach((nodeId, stats) ->
+                nodeIdToCpuMicrosBefore.put(nodeId, parseCpuMicros(LettuceFutures.awaitOrCancel(stats, TIMEOUT_SECONDS, TimeUnit.SECONDS))));
+
+        double[] slotHotness = sampleHotness(currentSlotMap, nodeIdToAsyncCommands, loadSettings.getSampleKeys());
+        sleep(TimeUnit.SECONDS.toMillis(loadSettings.getSampleSeconds()) - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+        Map<String, RedisFuture<String>> nodeIdToStatsAfter = new HashMap<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> nodeIdToStatsAfter.put(nodeId, asyncCommands.info("commandstats")));
+        long[] nodeCpuMicros = new long[currentSlotMap.getNodeCount()];
+        nodeIdToStatsAfter.forEach((nodeId, stats) -> {
+            int nodeIndex = currentSlotMap.indexOf(nodeId);
+            if (nodeIndex != SlotMap.UNASSIGNED) {
+                long cpuMicrosAfter = parseCpuMicros(LettuceFutures.awaitOrCancel(stats, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                nodeCpuMicros[nodeIndex] = Math.max(cpuMicrosAfter - nodeIdToCpuMicrosBefore.get(nodeId), 0);
+            }
+        });
+
+        // A node's CPU time goes to its slots by key count times hotness, by key count alone when no key looked hot
+        double[] slotScores = new double[REDIS_SLOT_COUNT];
+        double[] nodeScores = new double[currentSlotMap.getNodeCount()];
+        long[] nodeKeyCounts = currentSlotMap.sumByNode(slotKeyCounts);
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (currentSlotMap.isAssigned(slot)) {
+                slotScores[slot] = slotKeyCounts[slot] * slotHotness[slot];
+                nodeScores[currentSlotMap.getOwnerIndex(slot)] += slotScores[slot];
+            }
+        }
+        long[] slotCpuMicros = new long[REDIS_SLOT_COUNT];
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            int owner = currentSlotMap.getOwnerIndex(slot);
+            if (owner == SlotMap.UNASSIGNED) {
+                continue;
+            }
+            if (nodeScores[owner] > 0) {
+                slotCpuMicros[slot] = (long) (nodeCpuMicros[owner] * slotScores[slot] / nodeScores[owner]);
+            } else if (nodeKeyCounts[owner] > 0) {
+                slotCpuMicros[slot] = nodeCpuMicros[owner] * slotKeyCounts[slot] / nodeKeyCounts[owner];
+            }
+        }
+        return new SlotLoad(slotCpuMicros, "INFO commandstats and sampled keys");
+    }
+
+    // Mean hotness of up to sampleKeys keys of every slot, all nodes are asked for all their slots at once
+    private static double[] sampleHotness(
+            SlotMap currentSlotMap,
+            Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands,
+            int sampleKeys) {
+        Map<String, RedisFuture<Map<String, String>>> nodeIdToPolicy = new HashMap<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> nodeIdToPolicy.put(nodeId, asyncCommands.configGet("maxmemory-policy")));
+        List<RedisFuture<List<byte[]>>> slotToSampledKeys = new ArrayList<>(Collections.nCopies(REDIS_SLOT_COUNT, null));
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> {
+            int nodeIndex = currentSlotMap.indexOf(nodeId);
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                if (nodeIndex != SlotMap.UNASSIGNED && currentSlotMap.getOwnerIndex(slot) == nodeIndex) {
+                    slotToSampledKeys.set(slot, asyncCommands.clusterGetKeysInSlot(slot, sampleKeys));
+                }
+            }
+        });
+        Map<String, Boolean> nodeIdToLfu = new HashMap<>();
+        nodeIdToPolicy.forEach((nodeId, policy) -> nodeIdToLfu.put(nodeId, isLfu(policy)));
+
+        List<List<RedisFuture<Long>>> slotToKeyHotness = new ArrayList<>();
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            List<RedisFuture<Long>> keyHotness = new ArrayList<>();
+            if (slotToSampledKeys.get(slot) != null) {
+                String nodeId = currentSlotMap.getOwner(slot);
+                RedisAsyncCommands<byte[], byte[]> asyncCommands = nodeIdToAsyncCommands.get(nodeId);
+                boolean lfu = nodeIdToLfu.get(nodeId);
+                for (byte[] key : LettuceFutures.awaitOrCancel(slotToSampledKeys.get(slot), TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    keyHotness.add(lfu ? asyncCommands.objectFreq(key) : asyncCommands.objectIdletime(key));
+                }
+            }
+            slotToKeyHotness.add(keyHotness);
+        }
+
+        double[] slotHotness = new double[REDIS_SLOT_COUNT];
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (slotToKeyHotness.get(slot).isEmpty()) {
+                continue;
+            }
+            boolean lfu = nodeIdToLfu.get(currentSlotMap.getOwner(slot));
+            double hotnessSum = 0;
+            int sampled = 0;
+            for (RedisFuture<Long> hotness : slotToKeyHotness.get(slot)) {
+                Long value = awaitOrNull(hotness);
+                if (value != null) {
+                    // LFU counters grow with the log of accesses; idle seconds are turned into a recency score
+                    hotnessSum += lfu ? value : 1.0 / (1 + value);
+                    sampled++;
+                }
+            }
+            if (sampled > 0) {
+                slotHotness[slot] = hotnessSum / sampled;
+            }
+        }
+        return slotHotness;
+    }
+
+    // Keys can expire or be deleted between GETKEYSINSLOT and OBJECT
+    private static Long awaitOrNull(RedisFuture<Long> future) {
+        try {
+            return LettuceFutures.awaitOrCancel(future, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RedisCommandExecutionException e) {
+            return null;
+        }
+    }
+
+    // CONFIG can be renamed or disabled on managed clusters, OBJECT IDLETIME works then unless the policy is LFU
+    private static boolean isLfu(RedisFuture<Map<String, String>> policy) {
+        try {
+            String maxMemoryPolicy = LettuceFutures.awaitOrCancel(policy, TIMEOUT_SECONDS, TimeUnit.SECONDS).get("maxmemory-policy");
+            return maxMemoryPolicy != null && maxMemoryPolicy.contains("lfu");
+        } catch (RedisCommandExecutionException e) {
+            return false;
+        }
+    }
+
+    // "cmdstat_get:calls=21,usec=175,usec_per_call=8.33,rejected_calls=0,failed_calls=0"
+    static long parseCpuMicros(String commandStats) {
+        return commandStats.lines()
+                .filter(line -> line.startsWith("cmdstat_") && line.indexOf(':') > 0)
+                .filter(line -> OWN_COMMANDS.stream().noneMatch(line.substring("cmdstat_".length())::startsWith))
+                .flatMap(line -> Arrays.stream(line.substring(line.indexOf(':') + 1).split(",")))
+                .filter(field -> field.startsWith("usec="))
+                .mapToLong(field -> Long.parseLong(field.substring("usec=".length())))
+                .sum();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(Math.max(millis, 0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while measuring slot load", e);
+        }
+    }
+}
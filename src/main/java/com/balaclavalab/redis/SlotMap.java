@@ -0,0 +1,232 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+
+/**
+ * Owner of every slot, kept as an index into a table of node ids ({@link #UNASSIGNED} when a slot has no owner).
+ * Maps derived with {@link #withSameNodes()} share the node table, so comparing them compares plain numbers; maps
+ * with different tables are compared by translating one table into the other once.
+ */
+public class SlotMap {
+
+    public static final int UNASSIGNED = -1;
+
+    private final NodeTable nodeTable;
+    private final short[] owners;
+
+    public SlotMap(List<String> nodeIds) {
+        this(new NodeTable(), new short[REDIS_SLOT_COUNT]);
+        nodeIds.forEach(nodeTable::add);
+        clear();
+    }
+
+    private SlotMap(NodeTable nodeTable, short[] owners) {
+        this.nodeTable = nodeTable;
+        this.owners = owners;
+    }
+
+    public static SlotMap fromPartitions(Partitions clusterPartitions) {
+        SlotMap slotMap = new SlotMap(Collections.emptyList());
+        for (RedisClusterNode clusterNode : clusterPartitions) {
+            if (clusterNode.getSlots().isEmpty()) {
+                continue;
+            }
+            int nodeIndex = slotMap.addNode(clusterNode.getNodeId());
+            clusterNode.getSlots().forEach(slot -> slotMap.owners[slot] = (short) nodeIndex);
+        }
+        return slotMap;
+    }
+
+    // Empty map whose node indexes mean the same nodes as in this one
+    public SlotMap withSameNodes() {
+        SlotMap slotMap = new SlotMap(nodeTable, new short[REDIS_SLOT_COUNT]);
+        slotMap.clear();
+        return slotMap;
+    }
+
+    public SlotMap copy() {
+        return new SlotMap(nodeTable, owners.clone());
+    }
+
+    public List<String> getNodeIds() {
+        return Collections.unmodifiableList(nodeTable.nodeIds);
+    }
+
+    public int getNodeCount() {
+        return nodeTable.nodeIds.size();
+    }
+
+    public String getNodeId(int nodeIndex) {
+        return nodeTable.nodeIds.get(nodeIndex);
+    }
+
+    public int indexOf(String nodeId) {
+        return nodeTable.nodeIdToIndex.getOrDefault(nodeId, UNASSIGNED);
+    }
+
+    public int addNode(String nodeId) {
+        return nodeTable.add(nodeId);
+    }
+
+    public int getOwnerIndex(int slot) {
+        return owners[slot];
+    }
+
+    public String getOwner(int slot) {
+        int nodeIndex = owners[slot];
+        return nodeIndex == UNASSIGNED ? null : nodeTable.nodeIds.get(nodeIndex);
+    }
+
+    public boolean isAssigned(int slot) {
+        return owners[slot] != UNASSIGNED;
+    }
+
+    public void setOwnerIndex(int slot, int nodeIndex) {
+        owners[slot] = (short) nodeIndex;
+    }
+
+    public void setOwner(int slot, String nodeId) {
+        owners[slot] = (short) (nodeId == null ? UNASSIGNED : addNode(nodeId));
+    }
+
+    public void setOwnerIndex(int fromSlot, int toSlot, int nodeIndex) {
+        for (int slot = fromSlot; slot <= toSlot; slot++) {
+            owners[slot] = (short) nodeIndex;
+        }
+    }
+
+    public void clear() {
+        setOwnerIndex(0, REDIS_SLOT_COUNT - 1, UNASSIGNED);
+    }
+
+    public int[] countSlotsByNode() {
+        int[] slotCounts = new int[getNodeCount()];
+        for (short owner : owners) {
+            if (owner != UNASSIGNED) {
+                slotCounts[owner]++;
+            }
+        }
+        return slotCounts;
+    }
+
+    public long[] sumByNode(long[] slotWeights) {
+        long[] loads = new long[getNodeCount()];
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (owners[slot] != UNASSIGNED) {
+                loads[owners[slot]] += slotWeights[slot];
+            }
+        }
+        return loads;
+    }
+
+    public interface SlotRangeConsumer {
+        void accept(int from, int to, String nodeId);
+    }
+
+    // Runs of consecutive slots with the same owner, unassigned runs are skipped
+    public void forEachRange(SlotRangeConsumer slotRangeConsumer) {
+        int from = 0;
+        for (int slot = 1; slot <= REDIS_SLOT_COUNT; slot++) {
+            if (slot == REDIS_SLOT_COUNT || owners[slot] != owners[from]) {
+                if (owners[from] != UNASSIGNED) {
+                    slotRangeConsumer.accept(from, slot - 1, getNodeId(owners[from]));
+                }
+                from = slot;
+            }
+        }
+    }
+
+    public Map<String, List<int[]>> getRangesByNode() {
+        Map<String, List<int[]>> nodeIdToRanges = new HashMap<>();
+        forEachRange((from, to, nodeId) -> nodeIdToRanges.computeIfAbsent(nodeId, ignored -> new ArrayList<>())
+                .add(new int[]{from, to}));
+        return nodeIdToRanges;
+    }
+
+    // Desired owners of the slots that have no owner in this map
+    public SlotMap unassignedIn(SlotMap desired) {
+        SlotMap slotMap = desired.withSameNodes();
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (owners[slot] == UNASSIGNED) {
+                slotMap.owners[slot] = desired.owners[slot];
+            }
+        }
+        return slotMap;
+    }
+
+    // Slots that are owned here and have a different owner in the desired map
+    public List<ReshardAction> movesTo(SlotMap desired) {
+        int[] translation = translateTo(desired);
+        List<ReshardAction> reshardActions = new ArrayList<>();
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (isMoved(desired, translation, slot)) {
+                reshardActions.add(new ReshardAction(getOwner(slot), slot, desired.getOwner(slot)));
+            }
+        }
+        return reshardActions;
+    }
+
+    public int countMovedSlots(SlotMap desired) {
+        int[] translation = translateTo(desired);
+        int movedSlots = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (isMoved(desired, translation, slot)) {
+                movedSlots++;
+            }
+        }
+        return movedSlots;
+    }
+
+    public long countMovedKeys(SlotMap desired, long[] slotKeyCounts) {
+        int[] translation = translateTo(desired);
+        long movedKeys = 0;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            if (isMoved(desired, translation, slot)) {
+                movedKeys += slotKeyCounts[slot];
+            }
+        }
+        return movedKeys;
+    }
+
+    private boolean isMoved(SlotMap desired, int[] translation, int slot) {
+        int owner = owners[slot];
+        int desiredOwner = desired.owners[slot];
+        return owner != UNASSIGNED && desiredOwner != UNASSIGNED && translation[owner] != desiredOwner;
+    }
+
+    // Index of each of this map's nodes in the other map's table, UNASSIGNED where the other map does not know it
+    private int[] translateTo(SlotMap other) {
+        int[] translation = new int[getNodeCount()];
+        for (int nodeIndex = 0; nodeIndex < translation.length; nodeIndex++) {
+            translation[nodeIndex] = nodeTable == other.nodeTable ? nodeIndex : other.indexOf(getNodeId(nodeIndex));
+        }
+        return translation;
+    }
+
+    private static class NodeTable {
+        private final List<String> nodeIds = new ArrayList<>();
+        private final Map<String, Integer> nodeIdToIndex = new HashMap<>();
+
+        private int add(String nodeId) {
+            Integer nodeIndex = nodeIdToIndex.get(nodeId);
+            if (nodeIndex != null) {
+                return nodeIndex;
+            }
+            if (nodeIds.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many nodes in slot map");
+            }
+            nodeIds.add(nodeId);
+            nodeIdToIndex.put(nodeId, nodeIds.size() - 1);
+            return nodeIds.size() - 1;
+        }
+    }
+}
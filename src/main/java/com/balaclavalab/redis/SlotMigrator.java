@@ -0,0 +1,88 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.models.partitions.Partitions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Moves one slot at a time from its current node to its desired node: opens the slot on both nodes, transfers its
+ * keys and hands ownership over. Holds everything slot migrations of a reshard share, so callers only say which slot
+ * goes where.
+ */
+public class SlotMigrator {
+
+    private final Partitions clusterPartitions;
+    private final Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands;
+    private final MigrationSettings migrationSettings;
+    private final MigrationThrottle migrationThrottle;
+    private final MigrationJournal migrationJournal;
+    private final SlotOwnershipPropagator slotOwnershipPropagator;
+    private final MigrationMetrics migrationMetrics;
+    private final boolean commit;
+    private final Map<String, MigrationBatchSizer> nodeIdToMigrationBatchSizer = new ConcurrentHashMap<>();
+
+    public SlotMigrator(
+            Partitions clusterPartitions,
+            Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
+            MigrationSettings migrationSettings,
+            MigrationThrottle migrationThrottle,
+            MigrationJournal migrationJournal,
+            SlotOwnershipPropagator slotOwnershipPropagator,
+            MigrationMetrics migrationMetrics,
+            boolean commit) {
+        this.clusterPartitions = clusterPartitions;
+        this.nodeIdToClusterCommands = nodeIdToClusterCommands;
+        this.migrationSettings = migrationSettings;
+        this.migrationThrottle = migrationThrottle;
+        this.migrationJournal = migrationJournal;
+        this.slotOwnershipPropagator = slotOwnershipPropagator;
+        this.migrationMetrics = migrationMetrics;
+        this.commit = commit;
+    }
+
+    public void moveSlot(ReshardAction reshardAction) {
+        int slot = reshardAction.getSlot();
+        String currentNodeId = reshardAction.getFromNodeId();
+        String desiredNodeId = reshardAction.getToNodeId();
+        if (!commit || migrationSettings.isVerbose()) {
+            System.out.println("Slot " + slot + " is not on desired node, currently on " + currentNodeId + ", but should be on " + desiredNodeId);
+        }
+        RedisCommands<byte[], byte[]> desiredClusterCommands = nodeIdToClusterCommands.get(desiredNodeId);
+        RedisCommands<byte[], byte[]> currentClusterCommands = nodeIdToClusterCommands.get(currentNodeId);
+        long startNanos = System.nanoTime();
+        if (commit) {
+            migrationMetrics.slotStarted();
+            if (migrationJournal != null) {
+                migrationJournal.started(reshardAction);
+            }
+            desiredClusterCommands.clusterSetSlotImporting(slot, currentNodeId);
+            currentClusterCommands.clusterSetSlotMigrating(slot, desiredNodeId);
+        }
+
+        if (!commit || migrationSettings.isVerbose()) {
+            System.out.println("Moving keys in slot " + slot + " to new node, total key count: " + currentClusterCommands.clusterCountKeysInSlot(slot));
+        }
+        if (commit) {
+            RedisURI desiredPartitionUri = clusterPartitions.getPartitionByNodeId(desiredNodeId).getUri();
+            new SlotTransfer(
+                    currentNodeId,
+                    currentClusterCommands.getStatefulConnection().async(),
+                    desiredNodeId,
+                    desiredPartitionUri,
+                    migrationSettings,
+                    nodeIdToMigrationBatchSizer.computeIfAbsent(currentNodeId, nodeId -> new MigrationBatchSizer(migrationSettings)),
+                    migrationThrottle,
+                    migrationMetrics)
+                    .transfer(slot);
+
+            slotOwnershipPropagator.propagate(slot, currentNodeId, desiredNodeId);
+            if (migrationJournal != null) {
+                migrationJournal.done(slot);
+            }
+            migrationMetrics.slotDone(currentNodeId, desiredNodeId, System.nanoTime() - startNanos);
+        }
+    }
+}
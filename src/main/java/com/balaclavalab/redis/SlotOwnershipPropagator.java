@@ -0,0 +1,95 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Finalizes slot ownership after its keys are moved: CLUSTER SETSLOT NODE goes to the target and then the source
+ * (in that order, so the slot is never left without an owner), then to all other masters at once. Optionally waits
+ * until a quorum of the other masters confirmed before the source is handed its next slot; the remaining replies
+ * are collected in the background. Replicas are not sent SETSLOT (Redis refuses it on replicas), they take the new
+ * owner from their master.
+ */
+public class SlotOwnershipPropagator {
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands;
+    private final int quorum;
+    private final Queue<CompletableFuture<String>> pendingConfirmations = new ConcurrentLinkedQueue<>();
+
+    public SlotOwnershipPropagator(Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands, int quorum) {
+        this.nodeIdToAsyncCommands = nodeIdToAsyncCommands;
+        this.quorum = quorum;
+    }
+
+    public void propagate(int slot, String sourceNodeId, String targetNodeId) {
+        LettuceFutures.awaitOrCancel(
+                nodeIdToAsyncCommands.get(targetNodeId).clusterSetSlotNode(slot, targetNodeId), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        LettuceFutures.awaitOrCancel(
+                nodeIdToAsyncCommands.get(sourceNodeId).clusterSetSlotNode(slot, targetNodeId), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        List<String> otherNodeIds = nodeIdToAsyncCommands.keySet().stream()
+                .filter(nodeId -> !nodeId.equals(sourceNodeId) && !nodeId.equals(targetNodeId))
+                .collect(toList());
+        int requiredConfirmations = Math.min(quorum, otherNodeIds.size());
+        CountDownLatch confirmations = new CountDownLatch(requiredConfirmations);
+        AtomicInteger failures = new AtomicInteger();
+        pendingConfirmations.removeIf(CompletableFuture::isDone);
+        otherNodeIds.forEach(nodeId -> pendingConfirmations.add(nodeIdToAsyncCommands.get(nodeId)
+                .clusterSetSlotNode(slot, targetNodeId)
+                .toCompletableFuture()
+                .whenComplete((reply, error) -> {
+                    if (error == null) {
+                        confirmations.countDown();
+                    } else {
+                        failures.incrementAndGet();
+                        System.out.println("Could not set slot " + slot + " to node " + targetNodeId + " on node " + nodeId + ": " + error.getMessage());
+                    }
+                })));
+
+        if (requiredConfirmations > 0) {
+            awaitQuorum(slot, confirmations, failures, otherNodeIds.size() - requiredConfirmations);
+        }
+    }
+
+    private void awaitQuorum(int slot, CountDownLatch confirmations, AtomicInteger failures, int allowedFailures) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        try {
+            while (!confirmations.await(100, TimeUnit.MILLISECONDS)) {
+                if (failures.get() > allowedFailures || System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Not enough nodes confirmed the new owner of slot " + slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for slot " + slot + " confirmations", e);
+        }
+    }
+
+    public void awaitAll() {
+        pendingConfirmations.forEach(confirmation -> {
+            try {
+                confirmation.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Failures are reported as they happen
+            }
+        });
+        pendingConfirmations.clear();
+    }
+}
@@ -0,0 +1,220 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.MigrateArgs;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Moves all keys of a slot from the source node to the target node using pipelined MIGRATE calls.
+ * The next GETKEYSINSLOT is sent right behind the MIGRATE calls in flight, so the source node never waits
+ * for the client between batches.
+ */
+public class SlotTransfer {
+
+    private static final long MIGRATE_TIMEOUT_MILLIS = 60_000;
+    // Large keys get extra time on top of the default timeout, assuming at least ~1MB/s transfer speed
+    private static final long LARGE_KEY_BYTES_PER_EXTRA_MILLI = 1024;
+
+    private final String sourceNodeId;
+    private final RedisAsyncCommands<byte[], byte[]> sourceCommands;
+    private final String targetNodeId;
+    private final RedisURI targetUri;
+    private final MigrationSettings migrationSettings;
+    private final MigrationBatchSizer migrationBatchSizer;
+    private final MigrationThrottle migrationThrottle;
+    private final MigrationMetrics migrationMetrics;
+    private long lastCompletionNanos;
+
+    public SlotTransfer(
+            String sourceNodeId,
+            RedisAsyncCommands<byte[], byte[]> sourceCommands,
+            String targetNodeId,
+            RedisURI targetUri,
+            MigrationSettings migrationSettings,
+            MigrationBatchSizer migrationBatchSizer,
+            MigrationThrottle migrationThrottle,
+            MigrationMetrics migrationMetrics) {
+        this.sourceNodeId = sourceNodeId;
+        this.sourceCommands = sourceCommands;
+        this.targetNodeId = targetNodeId;
+        this.targetUri = targetUri;
+        this.migrationSettings = migrationSettings;
+        this.migrationBatchSizer = migrationBatchSizer;
+        this.migrationThrottle = migrationThrottle;
+        this.migrationMetrics = migrationMetrics;
+    }
+
+    public long transfer(int slot) {
+        Deque<InFlightMigration> inFlightMigrations = new ArrayDeque<>();
+        long movedKeyCount = 0;
+        lastCompletionNanos = System.nanoTime();
+
+        RedisFuture<List<byte[]>> nextKeys = fetchKeys(slot);
+        long nextKeysTimeoutMillis = getQueuedTimeoutMillis(inFlightMigrations);
+        while (true) {
+            List<byte[]> keys = await(nextKeys, nextKeysTimeoutMillis);
+            movedKeyCount += completeDoneMigrations(inFlightMigrations);
+            if (keys.isEmpty()) {
+                if (inFlightMigrations.isEmpty()) {
+                    break;
+                }
+                movedKeyCount += completeOldestMigration(inFlightMigrations);
+                nextKeys = fetchKeys(slot);
+                nextKeysTimeoutMillis = getQueuedTimeoutMillis(inFlightMigrations);
+                continue;
+            }
+
+            long[] keySizes = sampleKeySizes(keys, inFlightMigrations);
+            List<byte[]> batch = new ArrayList<>();
+            long batchBytes = 0;
+            int batchSize = migrationBatchSizer.nextBatchSize();
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                if (migrationSettings.getLargeKeyBytes() > 0 && keySizes[i] >= migrationSettings.getLargeKeyBytes()) {
+                    movedKeyCount += dispatch(slot, List.of(key), keySizes[i], inFlightMigrations);
+                    continue;
+                }
+
+                batch.add(key);
+                batchBytes += Math.max(keySizes[i], 0);
+                boolean batchFull = batch.size() >= batchSize
+                        || (migrationSettings.getBatchBytes() > 0 && batchBytes >= migrationSettings.getBatchBytes());
+                if (batchFull) {
+                    movedKeyCount += dispatch(slot, batch, batchBytes, inFlightMigrations);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                    batchSize = migrationBatchSizer.nextBatchSize();
+                }
+            }
+            if (!batch.isEmpty()) {
+                movedKeyCount += dispatch(slot, batch, batchBytes, inFlightMigrations);
+            }
+
+            // Queued behind the migrations above, so it only returns keys they did not move
+            nextKeys = fetchKeys(slot);
+            nextKeysTimeoutMillis = getQueuedTimeoutMillis(inFlightMigrations);
+        }
+        return movedKeyCount;
+    }
+
+    private RedisFuture<List<byte[]>> fetchKeys(int slot) {
+        long dispatchNanos = System.nanoTime();
+        RedisFuture<List<byte[]>> keys = sourceCommands.clusterGetKeysInSlot(
+                slot, migrationBatchSizer.nextBatchSize() * migrationSettings.getMigrationsInFlight());
+        keys.thenRun(() -> migrationMetrics.getKeysInSlotDone(System.nanoTime() - dispatchNanos));
+        return keys;
+    }
+
+    private long[] sampleKeySizes(List<byte[]> keys, Deque<InFlightMigration> inFlightMigrations) {
+        long[] keySizes = new long[keys.size()];
+        if (!migrationSettings.isSampleMemoryUsage()) {
+            Arrays.fill(keySizes, -1);
+            return keySizes;
+        }
+
+        List<RedisFuture<Long>> memoryUsages = keys.stream()
+                .map(sourceCommands::memoryUsage)
+                .collect(toList());
+        long timeoutMillis = getQueuedTimeoutMillis(inFlightMigrations);
+        for (int i = 0; i < keySizes.length; i++) {
+            Long memoryUsage = await(memoryUsages.get(i), timeoutMillis);
+            keySizes[i] = memoryUsage == null ? 0 : memoryUsage;
+        }
+        return keySizes;
+    }
+
+    private long dispatch(
+            int slot,
+            List<byte[]> batch,
+            long batchBytes,
+            Deque<InFlightMigration> inFlightMigrations) {
+        long movedKeyCount = 0;
+        if (inFlightMigrations.size() >= migrationSettings.getMigrationsInFlight()) {
+            movedKeyCount += completeOldestMigration(inFlightMigrations);
+        }
+
+        migrationThrottle.acquire(sourceNodeId, targetNodeId, batch.size(), batchBytes);
+        long timeoutMillis = MIGRATE_TIMEOUT_MILLIS;
+        if (migrationSettings.getLargeKeyBytes() > 0 && batch.size() == 1 && batchBytes >= migrationSettings.getLargeKeyBytes()) {
+            timeoutMillis += batchBytes / LARGE_KEY_BYTES_PER_EXTRA_MILLI;
+            migrationMetrics.largeKeyStarted();
+            if (migrationSettings.isVerbose()) {
+                System.out.println("Moving large key in slot " + slot + " to new node, bytes: " + batchBytes);
+            }
+        } else if (migrationSettings.isVerbose()) {
+            System.out.println("Moving keys in slot " + slot + " to new node, key count: " + batch.size());
+        }
+        migrationMetrics.migrateStarted();
+        long dispatchNanos = System.nanoTime();
+        RedisFuture<String> result = sourceCommands.migrate(
+                targetUri.getHost(),
+                targetUri.getPort(),
+                0,
+                timeoutMillis,
+                MigrateArgs.Builder.keys(batch).replace());
+        result.whenComplete((reply, error) -> migrationMetrics.migrateFinished());
+        inFlightMigrations.add(new InFlightMigration(batch, batchBytes, timeoutMillis, dispatchNanos, result));
+        return movedKeyCount;
+    }
+
+    private long completeDoneMigrations(Deque<InFlightMigration> inFlightMigrations) {
+        long movedKeyCount = 0;
+        while (!inFlightMigrations.isEmpty() && inFlightMigrations.peek().result.isDone()) {
+            movedKeyCount += completeOldestMigration(inFlightMigrations);
+        }
+        return movedKeyCount;
+    }
+
+    private long completeOldestMigration(Deque<InFlightMigration> inFlightMigrations) {
+        InFlightMigration migration = inFlightMigrations.poll();
+        await(migration.result, migration.timeoutMillis * 2);
+        // Pipelined calls queue up on the server, so only the time since the previous completion is spent on this one
+        long completionNanos = migration.completionNanos.join();
+        long elapsedNanos = completionNanos - Math.max(migration.dispatchNanos, lastCompletionNanos);
+        lastCompletionNanos = completionNanos;
+        migrationBatchSizer.record(migration.keys.size(), migration.bytes, elapsedNanos);
+        migrationMetrics.migrateDone(
+                sourceNodeId, targetNodeId, migration.keys.size(), migration.bytes, completionNanos - migration.dispatchNanos);
+        migrationThrottle.completed(sourceNodeId, targetNodeId, migration.keys.size(), migration.bytes, elapsedNanos);
+        return migration.keys.size();
+    }
+
+    // A command sent now is answered only after the MIGRATE calls in flight, which may take up to their own timeouts
+    private static long getQueuedTimeoutMillis(Deque<InFlightMigration> inFlightMigrations) {
+        return MIGRATE_TIMEOUT_MILLIS + inFlightMigrations.stream().mapToLong(migration -> migration.timeoutMillis).sum();
+    }
+
+    private static <T> T await(RedisFuture<T> future, long timeoutMillis) {
+        return LettuceFutures.awaitOrCancel(future, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static class InFlightMigration {
+        private final List<byte[]> keys;
+        private final long bytes;
+        private final long timeoutMillis;
+        private final long dispatchNanos;
+        private final RedisFuture<String> result;
+        private final CompletableFuture<Long> completionNanos;
+
+        InFlightMigration(List<byte[]> keys, long bytes, long timeoutMillis, long dispatchNanos, RedisFuture<String> result) {
+            this.keys = keys;
+            this.bytes = bytes;
+            this.timeoutMillis = timeoutMillis;
+            this.dispatchNanos = dispatchNanos;
+            this.result = result;
+            this.completionNanos = result.toCompletableFuture().thenApply(reply -> System.nanoTime());
+        }
+    }
+}
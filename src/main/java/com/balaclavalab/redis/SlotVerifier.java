@@ -0,0 +1,233 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.models.partitions.ClusterPartitionParser;
+import io.lettuce.core.cluster.models.partitions.Partitions;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static com.balaclavalab.redis.ReshardCli.REDIS_SLOT_COUNT;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Checks that the cluster ended up as expected: every master and replica sees the expected owner of every slot and
+ * has no slot left open, keys are only on the owner of their slot, slot key counts match the ones counted before
+ * the reshard and (optionally) keys sampled before the reshard have the same DUMP digest on their new owner. All
+ * nodes are checked at the same time. Replicas learn new owners through gossip, so node views are polled until
+ * they agree or a timeout passes before they count as findings.
+ */
+public class SlotVerifier {
+
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final long VIEW_CONVERGENCE_SECONDS = 30;
+    private static final long VIEW_POLL_MILLIS = 500;
+    // Findings beyond this many per kind are only counted
+    private static final int MAX_PRINTED_FINDINGS = 20;
+
+    private final SlotMap desiredSlotMap;
+    private final int digestKeys;
+    private final List<KeyDigest> keyDigests = new ArrayList<>();
+    private final Map<String, AtomicLong> findingCounts = new ConcurrentHashMap<>();
+
+    // desiredSlotMap is the plan after a committed reshard, the current assignment otherwise
+    public SlotVerifier(SlotMap desiredSlotMap, int digestKeys) {
+        this.desiredSlotMap = desiredSlotMap;
+        this.digestKeys = digestKeys;
+    }
+
+    // Before the reshard: DUMP digests of up to digestKeys keys of every slot that moves, read from the current owner
+    public void sampleDigests(SlotMap currentSlotMap, Map<String, RedisCommands<byte[], byte[]>> masterNodeIdToClusterCommands) {
+        if (digestKeys <= 0) {
+            return;
+        }
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands = toAsync(masterNodeIdToClusterCommands);
+        List<ReshardAction> reshardActions = currentSlotMap.movesTo(desiredSlotMap);
+        List<RedisFuture<List<byte[]>>> sampledKeys = reshardActions.stream()
+                .map(reshardAction -> nodeIdToAsyncCommands.get(reshardAction.getFromNodeId())
+                        .clusterGetKeysInSlot(reshardAction.getSlot(), digestKeys))
+                .collect(toList());
+        List<RedisFuture<byte[]>> dumps = new ArrayList<>();
+        for (int i = 0; i < reshardActions.size(); i++) {
+            ReshardAction reshardAction = reshardActions.get(i);
+            for (byte[] key : LettuceFutures.awaitOrCancel(sampledKeys.get(i), TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                keyDigests.add(new KeyDigest(reshardAction.getSlot(), key));
+                dumps.add(nodeIdToAsyncCommands.get(reshardAction.getFromNodeId()).dump(key));
+            }
+        }
+        for (int i = 0; i < dumps.size(); i++) {
+            keyDigests.get(i).digest = digest(LettuceFutures.awaitOrCancel(dumps.get(i), TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        System.out.println("Sampled DUMP digests of " + keyDigests.size() + " keys in " + reshardActions.size() + " slots to move\n");
+    }
+
+    /**
+     * @param slotCensusBefore key counts from before the reshard, null to skip comparing key counts
+     * @return true when nothing differs from the expected assignment
+     */
+    public boolean verify(
+            Partitions clusterPartitions,
+            Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands,
+            SlotCensus slotCensusBefore) {
+        System.out.println("Verifying slots on " + nodeIdToClusterCommands.size() + " nodes...");
+        long startNanos = System.nanoTime();
+        Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands = toAsync(nodeIdToClusterCommands);
+        List<String> masterNodeIds = clusterPartitions.stream()
+                .filter(clusterNode -> clusterNode.getRole().isMaster())
+                .map(RedisClusterNode::getNodeId)
+                .filter(nodeIdToClusterCommands::containsKey)
+                .collect(toList());
+
+        // Every node's own view of the cluster, asked again until all of them agree
+        long viewDeadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(VIEW_CONVERGENCE_SECONDS);
+        List<String[]> viewFindings = checkViews(nodeIdToAsyncCommands);
+        if (!viewFindings.isEmpty()) {
+            System.out.println("Waiting up to " + VIEW_CONVERGENCE_SECONDS + "s for all nodes to agree on slot owners...");
+        }
+        while (!viewFindings.isEmpty() && System.nanoTime() < viewDeadlineNanos) {
+            sleep(VIEW_POLL_MILLIS);
+            viewFindings = checkViews(nodeIdToAsyncCommands);
+        }
+        viewFindings.forEach(viewFinding -> report(viewFinding[0], viewFinding[1]));
+
+        // Digests are compared as DUMP replies of the new owners come in
+        List<CompletableFuture<Void>> digestChecks = new ArrayList<>();
+        keyDigests.stream()
+                .filter(keyDigest -> keyDigest.digest != -1 && nodeIdToAsyncCommands.containsKey(desiredSlotMap.getOwner(keyDigest.slot)))
+                .forEach(keyDigest -> {
+                    String ownerNodeId = desiredSlotMap.getOwner(keyDigest.slot);
+                    digestChecks.add(nodeIdToAsyncCommands.get(ownerNodeId).dump(keyDigest.key)
+                            .toCompletableFuture()
+                            .thenAccept(dump -> {
+                                if (dump == null) {
+                                    report("digest", "Key " + new String(keyDigest.key) + " of slot " + keyDigest.slot + " is missing on node " + ownerNodeId);
+                                } else if (digest(dump) != keyDigest.digest) {
+                                    report("digest", "Key " + new String(keyDigest.key) + " of slot " + keyDigest.slot + " differs on node " + ownerNodeId);
+                                }
+                            }));
+                });
+
+        // Counting every slot on every master also finds keys left on nodes that do not own their slot any more
+        Map<String, RedisCommands<byte[], byte[]>> masterNodeIdToClusterCommands = masterNodeIds.stream()
+                .collect(toMap(nodeId -> nodeId, nodeIdToClusterCommands::get, (a, b) -> a, LinkedHashMap::new));
+        SlotCensus slotCensusAfter = SlotCensus.scan(desiredSlotMap, masterNodeIdToClusterCommands, true);
+        slotCensusAfter.getStrayKeys().forEach(strayKeys -> report("stray", "Slot " + strayKeys.getSlot() + " still has "
+                + strayKeys.getKeyCount() + " keys on node " + strayKeys.getNodeId() + ", owner is " + desiredSlotMap.getOwner(strayKeys.getSlot())));
+        if (slotCensusBefore != null) {
+            long[] keyCountsBefore = slotCensusBefore.getSlotKeyCounts();
+            long[] keyCountsAfter = slotCensusAfter.getSlotKeyCounts();
+            for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+                if (keyCountsBefore[slot] != keyCountsAfter[slot]) {
+                    report("keycount", "Slot " + slot + " had " + keyCountsBefore[slot] + " keys, has " + keyCountsAfter[slot]
+                            + " on node " + desiredSlotMap.getOwner(slot));
+                }
+            }
+        }
+
+        digestChecks.forEach(digestCheck -> digestCheck.exceptionally(error -> {
+            report("digest", "Could not read a sampled key back: " + error.getMessage());
+            return null;
+        }).join());
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (findingCounts.isEmpty()) {
+            System.out.println("Verification passed in " + elapsedMillis + "ms\n");
+            return true;
+        }
+        System.out.println("Verification failed in " + elapsedMillis + "ms: " + findingCounts.entrySet().stream()
+                .map(entry -> entry.getValue() + " " + entry.getKey())
+                .collect(toList()) + "\n");
+        return false;
+    }
+
+    // Kind and text of every finding, all nodes are asked at once
+    private List<String[]> checkViews(Map<String, RedisAsyncCommands<byte[], byte[]>> nodeIdToAsyncCommands) {
+        List<String[]> viewFindings = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> viewChecks = new ArrayList<>();
+        nodeIdToAsyncCommands.forEach((nodeId, asyncCommands) -> viewChecks.add(asyncCommands.clusterNodes()
+                .toCompletableFuture()
+                .thenAccept(clusterNodes -> viewFindings.addAll(checkView(nodeId, clusterNodes)))
+                .exceptionally(error -> {
+                    viewFindings.add(new String[]{"unreachable", "Node " + nodeId + " could not be asked for its view: " + error.getMessage()});
+                    return null;
+                })));
+        viewChecks.forEach(CompletableFuture::join);
+        return viewFindings;
+    }
+
+    private List<String[]> checkView(String nodeId, String clusterNodes) {
+        List<String[]> viewFindings = new ArrayList<>();
+        SlotMap viewSlotMap = SlotMap.fromPartitions(ClusterPartitionParser.parse(clusterNodes));
+        int differentSlots = 0;
+        int firstDifferentSlot = -1;
+        for (int slot = 0; slot < REDIS_SLOT_COUNT; slot++) {
+            String desiredOwner = desiredSlotMap.getOwner(slot);
+            if (desiredOwner != null && !desiredOwner.equals(viewSlotMap.getOwner(slot))) {
+                differentSlots++;
+                firstDifferentSlot = firstDifferentSlot < 0 ? slot : firstDifferentSlot;
+            }
+        }
+        if (differentSlots > 0) {
+            viewFindings.add(new String[]{"ownership", "Node " + nodeId + " sees " + differentSlots
+                    + " slots on other nodes than expected, e.g. slot " + firstDifferentSlot + " on " + viewSlotMap.getOwner(firstDifferentSlot)
+                    + " instead of " + desiredSlotMap.getOwner(firstDifferentSlot)});
+        }
+        OpenSlot.parse(clusterNodes).forEach(openSlot -> viewFindings.add(new String[]{"open", openSlot.toString()}));
+        return viewFindings;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for nodes to agree on slot owners", e);
+        }
+    }
+
+    private void report(String kind, String finding) {
+        if (findingCounts.computeIfAbsent(kind, ignored -> new AtomicLong()).incrementAndGet() <= MAX_PRINTED_FINDINGS) {
+            System.out.println(finding);
+        }
+    }
+
+    private static Map<String, RedisAsyncCommands<byte[], byte[]>> toAsync(Map<String, RedisCommands<byte[], byte[]>> nodeIdToClusterCommands) {
+        return nodeIdToClusterCommands.entrySet().stream()
+                .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().getStatefulConnection().async()));
+    }
+
+    // DUMP ends with the RDB version and a checksum, so payloads only compare equal between servers of the same
+    // version; -1 for keys that were gone when sampled
+    private static long digest(byte[] dump) {
+        if (dump == null) {
+            return -1;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(dump);
+        return crc32.getValue();
+    }
+
+    private static class KeyDigest {
+        private final int slot;
+        private final byte[] key;
+        private long digest;
+
+        KeyDigest(int slot, byte[] key) {
+            this.slot = slot;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.balaclavalab.redis;
+
+public class ThrottleSettings {
+
+    private final long clusterKeysPerSecond;
+    private final long clusterBytesPerSecond;
+    private final long nodeKeysPerSecond;
+    private final long nodeBytesPerSecond;
+    private final long maxLatencyMillis;
+    private final long maxOpsPerSecond;
+    private final int maxMemoryPercent;
+    private final long sampleIntervalMillis;
+
+    public ThrottleSettings(
+            long clusterKeysPerSecond,
+            long clusterBytesPerSecond,
+            long nodeKeysPerSecond,
+            long nodeBytesPerSecond,
+            long maxLatencyMillis,
+            long maxOpsPerSecond,
+            int maxMemoryPercent,
+            long sampleIntervalMillis) {
+        this.clusterKeysPerSecond = clusterKeysPerSecond;
+        this.clusterBytesPerSecond = clusterBytesPerSecond;
+        this.nodeKeysPerSecond = nodeKeysPerSecond;
+        this.nodeBytesPerSecond = nodeBytesPerSecond;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.maxOpsPerSecond = maxOpsPerSecond;
+        this.maxMemoryPercent = maxMemoryPercent;
+        this.sampleIntervalMillis = sampleIntervalMillis;
+    }
+
+    public long getClusterKeysPerSecond() {
+        return clusterKeysPerSecond;
+    }
+
+    public long getClusterBytesPerSecond() {
+        return clusterBytesPerSecond;
+    }
+
+    public long getNodeKeysPerSecond() {
+        return nodeKeysPerSecond;
+    }
+
+    public long getNodeBytesPerSecond() {
+        return nodeBytesPerSecond;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    public long getMaxOpsPerSecond() {
+        return maxOpsPerSecond;
+    }
+
+    public int getMaxMemoryPercent() {
+        return maxMemoryPercent;
+    }
+
+    public long getSampleIntervalMillis() {
+        return sampleIntervalMillis;
+    }
+
+    public boolean isLimitingBytes() {
+        return clusterBytesPerSecond > 0 || nodeBytesPerSecond > 0;
+    }
+
+    public boolean isLimitingRate() {
+        return clusterKeysPerSecond > 0 || nodeKeysPerSecond > 0 || isLimitingBytes();
+    }
+
+    public boolean isFeedbackEnabled() {
+        return maxLatencyMillis > 0 || maxOpsPerSecond > 0 || maxMemoryPercent > 0;
+    }
+}
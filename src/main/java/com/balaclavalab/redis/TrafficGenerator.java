@@ -0,0 +1,138 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client traffic over the test data keys while a reshard runs: reads and writes in a fixed mix at a fixed rate, sent
+ * through cluster connections that follow MOVED and ASK redirects like an application would. Every call's latency is
+ * recorded, failed calls (e.g. TRYAGAIN while a slot moves) are counted.
+ */
+public class TrafficGenerator implements AutoCloseable {
+
+    private static final int MAX_IN_FLIGHT_PER_CONNECTION = 100;
+
+    private final WorkloadGenerator workloadGenerator;
+    private final long opsPerSecond;
+    private final int readPercent;
+    private final LatencyHistogram latency = new LatencyHistogram(1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000);
+    private final LongAdder ops = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final List<Thread> threads = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean running = true;
+
+    public TrafficGenerator(
+            WorkloadGenerator workloadGenerator,
+            long opsPerSecond,
+            int readPercent,
+            ConnectionManager connectionManager) {
+        this.workloadGenerator = workloadGenerator;
+        this.opsPerSecond = opsPerSecond;
+        this.readPercent = readPercent;
+        int connections = workloadGenerator.getWorkloadSettings().getConnections();
+        for (int i = 0; i < connections; i++) {
+            StatefulRedisClusterConnection<byte[], byte[]> connection = connectionManager.connectCluster();
+            SplittableRandom random = new SplittableRandom(i);
+            Thread thread = new Thread(() -> run(connection, random, (double) opsPerSecond / connections), "traffic-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        System.out.println("Generating " + opsPerSecond + " ops/s of traffic (" + readPercent + "% reads) over "
+                + connections + " connections\n");
+        threads.forEach(Thread::start);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getOps() {
+        return ops.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    // Sends whatever is due since the start every millisecond, so the rate holds even when single sends are late
+    private void run(StatefulRedisClusterConnection<byte[], byte[]> connection, SplittableRandom random, double opsPerSecondPerConnection) {
+        RedisAdvancedClusterAsyncCommands<byte[], byte[]> commands = connection.async();
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT_PER_CONNECTION);
+        long threadStartNanos = System.nanoTime();
+        long sent = 0;
+        try {
+            while (running) {
+                long due = (long) ((System.nanoTime() - threadStartNanos) / 1e9 * opsPerSecondPerConnection);
+                while (sent < due && running) {
+                    window.acquire();
+                    long callStartNanos = System.nanoTime();
+                    nextCall(commands, random).whenComplete((reply, error) -> {
+                        latency.record(System.nanoTime() - callStartNanos);
+                        ops.increment();
+                        if (error != null) {
+                            errors.increment();
+                        }
+                        window.release();
+                    });
+                    sent++;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            window.acquire(MAX_IN_FLIGHT_PER_CONNECTION);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private RedisFuture<?> nextCall(RedisAdvancedClusterAsyncCommands<byte[], byte[]> commands, SplittableRandom random) {
+        WorkloadSettings workloadSettings = workloadGenerator.getWorkloadSettings();
+        long keyNumber = workloadSettings.getKeysStart() + random.nextLong(Math.max(workloadSettings.getKeysCount(), 1));
+        byte[] key = workloadGenerator.key(keyNumber);
+        int member = random.nextInt(workloadSettings.getMembers());
+        boolean read = random.nextInt(100) < readPercent;
+        switch (workloadSettings.getDataType()) {
+            case "string":
+                return read ? commands.get(key) : commands.set(key, workloadGenerator.value(keyNumber, random));
+            case "hash":
+                return read
+                        ? commands.hget(key, workloadGenerator.field(member))
+                        : commands.hset(key, workloadGenerator.field(member), workloadGenerator.value(keyNumber, random));
+            case "set":
+                return read
+                        ? commands.sismember(key, workloadGenerator.member(member))
+                        : commands.sadd(key, workloadGenerator.member(member));
+            default:
+                return read
+                        ? commands.zscore(key, workloadGenerator.member(member))
+                        : commands.zadd(key, member, workloadGenerator.member(member));
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        threads.forEach(thread -> {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 0.001);
+        System.out.println("Traffic: " + ops.sum() + " ops (" + (long) (ops.sum() / seconds) + " ops/s of " + opsPerSecond
+                + " requested), " + errors.sum() + " errors, latency p50 " + latency.formatQuantile(0.5)
+                + ", p99 " + latency.formatQuantile(0.99) + ", p99.9 " + latency.formatQuantile(0.999) + "\n");
+    }
+}
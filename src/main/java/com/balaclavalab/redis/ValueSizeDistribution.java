@@ -0,0 +1,57 @@
+package com.balaclavalab.redis;
+
+import java.util.SplittableRandom;
+
+/**
+ * Sizes of generated values: a fixed size ({@code 100}), uniform between bounds ({@code 10-1000}) or log-uniform
+ * between bounds ({@code 10-1000000:log}), where every order of magnitude is equally likely, so most values are small
+ * and a few are very large. Size 0 keeps the old test data values, the key number itself.
+ */
+public class ValueSizeDistribution {
+
+    private final int minSize;
+    private final int maxSize;
+    private final boolean logUniform;
+
+    public ValueSizeDistribution(int minSize, int maxSize, boolean logUniform) {
+        if (minSize < 0 || maxSize < minSize || (logUniform && minSize == 0)) {
+            throw new IllegalArgumentException("Invalid value sizes " + minSize + "-" + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.logUniform = logUniform;
+    }
+
+    public static ValueSizeDistribution parse(String spec) {
+        String[] specAndShape = spec.split(":");
+        boolean logUniform = specAndShape.length > 1 && "log".equals(specAndShape[1]);
+        if (specAndShape.length > 1 && !logUniform) {
+            throw new IllegalArgumentException("Unknown value size distribution: " + spec);
+        }
+        String[] bounds = specAndShape[0].split("-");
+        int minSize = Integer.parseInt(bounds[0]);
+        int maxSize = bounds.length > 1 ? Integer.parseInt(bounds[1]) : minSize;
+        return new ValueSizeDistribution(minSize, maxSize, logUniform);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int sample(SplittableRandom random) {
+        if (minSize == maxSize) {
+            return minSize;
+        }
+        if (logUniform) {
+            double logMin = Math.log(minSize);
+            double logMax = Math.log(maxSize + 1);
+            return (int) Math.min(maxSize, Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+        }
+        return random.nextInt(minSize, maxSize + 1);
+    }
+
+    @Override
+    public String toString() {
+        return minSize == maxSize ? String.valueOf(minSize) : minSize + "-" + maxSize + (logUniform ? ":log" : "");
+    }
+}
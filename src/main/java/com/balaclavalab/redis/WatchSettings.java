@@ -0,0 +1,43 @@
+package com.balaclavalab.redis;
+
+public class WatchSettings {
+
+    private final long intervalSeconds;
+    private final int startImbalancePercent;
+    private final int stopImbalancePercent;
+    private final int maxSlotsPerCycle;
+
+    public WatchSettings(
+            long intervalSeconds,
+            int startImbalancePercent,
+            int stopImbalancePercent,
+            int maxSlotsPerCycle) {
+        if (intervalSeconds < 1 || maxSlotsPerCycle < 1) {
+            throw new IllegalArgumentException("Watch interval and slots per cycle must be at least 1");
+        }
+        if (stopImbalancePercent > startImbalancePercent) {
+            throw new IllegalArgumentException("Watch stop imbalance (" + stopImbalancePercent
+                    + "%) must not be over start imbalance (" + startImbalancePercent + "%)");
+        }
+        this.intervalSeconds = intervalSeconds;
+        this.startImbalancePercent = startImbalancePercent;
+        this.stopImbalancePercent = stopImbalancePercent;
+        this.maxSlotsPerCycle = maxSlotsPerCycle;
+    }
+
+    public long getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    public int getStartImbalancePercent() {
+        return startImbalancePercent;
+    }
+
+    public int getStopImbalancePercent() {
+        return stopImbalancePercent;
+    }
+
+    public int getMaxSlotsPerCycle() {
+        return maxSlotsPerCycle;
+    }
+}
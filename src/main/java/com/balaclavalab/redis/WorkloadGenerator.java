@@ -0,0 +1,291 @@
+package com.balaclavalab.redis;
+
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Writes and deletes test data through several cluster connections at once, each keeping a window of commands in
+ * flight. Key {@code N} is named {@code N}, or {@code {hotT}:N} for the share of keys put under one of the hot hash
+ * tags (all keys of a tag land in one slot). Names only depend on N and the settings, so a range of keys is deleted
+ * by generating its names again; keys can also be deleted by pattern, scanning every master at the same time.
+ */
+public class WorkloadGenerator {
+
+    private static final int MEMBERS_PER_COMMAND = 1000;
+    private static final int KEYS_PER_UNLINK = 100;
+    private static final int SCAN_COUNT = 1000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final WorkloadSettings workloadSettings;
+    private final ConnectionManager connectionManager;
+    private final byte[] randomBytes = new byte[64 * 1024];
+
+    public WorkloadGenerator(WorkloadSettings workloadSettings, ConnectionManager connectionManager) {
+        this.workloadSettings = workloadSettings;
+        this.connectionManager = connectionManager;
+        SplittableRandom random = new SplittableRandom(0);
+        for (int i = 0; i < randomBytes.length; i++) {
+            randomBytes[i] = (byte) ('a' + random.nextInt(26));
+        }
+    }
+
+    public WorkloadSettings getWorkloadSettings() {
+        return workloadSettings;
+    }
+
+    public void write() {
+        System.out.println("Writing test data: " + workloadSettings.getKeysCount() + " " + workloadSettings.getDataType()
+                + " keys from " + workloadSettings.getKeysStart() + ", value size " + workloadSettings.getValueSizes() + "...");
+        forEachKey((pipeline, keyNumber, random) -> {
+            byte[] key = key(keyNumber);
+            switch (workloadSettings.getDataType()) {
+                case "string":
+                    byte[] value = value(keyNumber, random);
+                    pipeline.send(commands -> commands.set(key, value));
+                    break;
+                case "hash":
+                    forEachMemberChunk((from, to) -> {
+                        Map<byte[], byte[]> fields = new LinkedHashMap<>();
+                        for (int member = from; member < to; member++) {
+                            fields.put(field(member), value(keyNumber, random));
+                        }
+                        pipeline.send(commands -> commands.hset(key, fields));
+                    });
+                    break;
+                case "set":
+                    forEachMemberChunk((from, to) -> {
+                        byte[][] members = new byte[to - from][];
+                        for (int member = from; member < to; member++) {
+                            members[member - from] = member(member);
+                        }
+                        pipeline.send(commands -> commands.sadd(key, members));
+                    });
+                    break;
+                default:
+                    forEachMemberChunk((from, to) -> {
+                        // Score and member pairs
+                        Object[] scoresAndMembers = new Object[(to - from) * 2];
+                        for (int member = from; member < to; member++) {
+                            scoresAndMembers[(member - from) * 2] = (double) member;
+                            scoresAndMembers[(member - from) * 2 + 1] = member(member);
+                        }
+                        pipeline.send(commands -> commands.zadd(key, scoresAndMembers));
+                    });
+                    break;
+            }
+        });
+    }
+
+    public void delete() {
+        System.out.println("Deleting test data: " + workloadSettings.getKeysCount() + " keys from " + workloadSettings.getKeysStart() + "...");
+        forEachKey((pipeline, keyNumber, random) -> pipeline.unlink(key(keyNumber)));
+    }
+
+    public void deleteMatching(String pattern, Collection<String> masterNodeIds) {
+        System.out.println("Deleting keys matching " + pattern + "...");
+        long startNanos = System.nanoTime();
+        LongAdder deletedKeys = new LongAdder();
+        List<String> nodeIds = new ArrayList<>(masterNodeIds);
+        runWorkers(nodeIds.size(), (worker, pipeline) -> {
+            String nodeId = nodeIds.get(worker);
+            RedisAsyncCommands<byte[], byte[]> nodeCommands = connectionManager.async(nodeId);
+            ScanArgs scanArgs = ScanArgs.Builder.matches(pattern).limit(SCAN_COUNT);
+            ScanCursor cursor = ScanCursor.INITIAL;
+            do {
+                KeyScanCursor<byte[]> keys = LettuceFutures.awaitOrCancel(
+                        nodeCommands.scan(cursor, scanArgs), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                keys.getKeys().forEach(pipeline::unlink);
+                deletedKeys.add(keys.getKeys().size());
+                cursor = keys;
+            } while (!cursor.isFinished());
+        });
+        printDone(deletedKeys.sum(), startNanos);
+    }
+
+    byte[] key(long keyNumber) {
+        // Multiplicative hashing spreads hot keys evenly over the key range
+        long hash = (keyNumber * 0x9E3779B97F4A7C15L) >>> 33;
+        if (workloadSettings.getHotTags() > 0 && hash % 100 < workloadSettings.getHotPercent()) {
+            long hotTag = (hash / 100) % workloadSettings.getHotTags();
+            return ("{hot" + hotTag + "}:" + keyNumber).getBytes(StandardCharsets.UTF_8);
+        }
+        return String.valueOf(keyNumber).getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] field(int member) {
+        return ("f" + member).getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] member(int member) {
+        return ("m" + member).getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] value(long keyNumber, SplittableRandom random) {
+        int size = workloadSettings.getValueSizes().sample(random);
+        if (size == 0) {
+            return String.valueOf(keyNumber).getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] value = new byte[size];
+        int offset = random.nextInt(randomBytes.length);
+        for (int i = 0; i < size; ) {
+            int length = Math.min(size - i, randomBytes.length - offset);
+            System.arraycopy(randomBytes, offset, value, i, length);
+            i += length;
+            offset = 0;
+        }
+        return value;
+    }
+
+    private interface MemberChunkConsumer {
+        void accept(int from, int to);
+    }
+
+    private void forEachMemberChunk(MemberChunkConsumer memberChunkConsumer) {
+        for (int from = 0; from < workloadSettings.getMembers(); from += MEMBERS_PER_COMMAND) {
+            memberChunkConsumer.accept(from, Math.min(workloadSettings.getMembers(), from + MEMBERS_PER_COMMAND));
+        }
+    }
+
+    private interface KeyTask {
+        void run(Pipeline pipeline, long keyNumber, SplittableRandom random);
+    }
+
+    // Worker N takes keys N, N + workers, N + 2 * workers, ...
+    private void forEachKey(KeyTask keyTask) {
+        long startNanos = System.nanoTime();
+        int workers = workloadSettings.getConnections();
+        long end = workloadSettings.getKeysStart() + workloadSettings.getKeysCount();
+        runWorkers(workers, (worker, pipeline) -> {
+            SplittableRandom random = new SplittableRandom(worker);
+            for (long keyNumber = workloadSettings.getKeysStart() + worker; keyNumber < end && !pipeline.hasFailed(); keyNumber += workers) {
+                keyTask.run(pipeline, keyNumber, random);
+            }
+        });
+        printDone(workloadSettings.getKeysCount(), startNanos);
+    }
+
+    private interface Worker {
+        void run(int worker, Pipeline pipeline);
+    }
+
+    private void runWorkers(int workers, Worker worker) {
+        AtomicReference<Throwable> firstError = new AtomicReference<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                int workerNumber = i;
+                futures.add(executorService.submit(() -> {
+                    try (StatefulRedisClusterConnection<byte[], byte[]> connection = connectionManager.connectCluster()) {
+                        Pipeline pipeline = new Pipeline(connection.async(), workloadSettings.getPipeline(), firstError);
+                        worker.run(workerNumber, pipeline);
+                        pipeline.drain();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating test data", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Test data worker failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        if (firstError.get() != null) {
+            throw new IllegalStateException("Test data command failed", firstError.get());
+        }
+    }
+
+    private static void printDone(long keyCount, long startNanos) {
+        double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 0.001);
+        System.out.println("Done, " + keyCount + " keys in " + String.format("%.1f", seconds) + "s ("
+                + (long) (keyCount / seconds) + " keys/s)\n");
+    }
+
+    private static class Pipeline {
+        private final RedisAdvancedClusterAsyncCommands<byte[], byte[]> commands;
+        private final int windowSize;
+        private final Semaphore window;
+        private final AtomicReference<Throwable> firstError;
+        private final List<byte[]> keysToUnlink = new ArrayList<>();
+
+        Pipeline(RedisAdvancedClusterAsyncCommands<byte[], byte[]> commands, int windowSize, AtomicReference<Throwable> firstError) {
+            this.commands = commands;
+            this.windowSize = windowSize;
+            this.window = new Semaphore(windowSize);
+            this.firstError = firstError;
+        }
+
+        <T> void send(Function<RedisAdvancedClusterAsyncCommands<byte[], byte[]>, RedisFuture<T>> command) {
+            acquire(1);
+            command.apply(commands).whenComplete((reply, error) -> {
+                if (error != null) {
+                    firstError.compareAndSet(null, error);
+                }
+                window.release();
+            });
+        }
+
+        // Keys are unlinked in batches, the cluster connection splits each batch by slot
+        void unlink(byte[] key) {
+            keysToUnlink.add(key);
+            if (keysToUnlink.size() >= KEYS_PER_UNLINK) {
+                flushUnlink();
+            }
+        }
+
+        private void flushUnlink() {
+            if (keysToUnlink.isEmpty()) {
+                return;
+            }
+            byte[][] keys = keysToUnlink.toArray(new byte[0][]);
+            keysToUnlink.clear();
+            send(commands -> commands.unlink(keys));
+        }
+
+        boolean hasFailed() {
+            return firstError.get() != null;
+        }
+
+        void drain() {
+            flushUnlink();
+            acquire(windowSize);
+            window.release(windowSize);
+        }
+
+        private void acquire(int permits) {
+            try {
+                window.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for test data commands", e);
+            }
+        }
+    }
+}
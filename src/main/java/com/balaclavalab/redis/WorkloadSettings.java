@@ -0,0 +1,77 @@
+package com.balaclavalab.redis;
+
+public class WorkloadSettings {
+
+    private final long keysStart;
+    private final long keysCount;
+    private final ValueSizeDistribution valueSizes;
+    private final String dataType;
+    private final int members;
+    private final int hotTags;
+    private final int hotPercent;
+    private final int connections;
+    private final int pipeline;
+
+    public WorkloadSettings(
+            long keysStart,
+            long keysCount,
+            ValueSizeDistribution valueSizes,
+            String dataType,
+            int members,
+            int hotTags,
+            int hotPercent,
+            int connections,
+            int pipeline) {
+        if (!"string".equals(dataType) && !"hash".equals(dataType) && !"set".equals(dataType) && !"zset".equals(dataType)) {
+            throw new IllegalArgumentException("Unknown test data type: " + dataType);
+        }
+        if (connections < 1 || pipeline < 1 || members < 1) {
+            throw new IllegalArgumentException("Test data connections, pipeline and members must be at least 1");
+        }
+        this.keysStart = keysStart;
+        this.keysCount = keysCount;
+        this.valueSizes = valueSizes;
+        this.dataType = dataType;
+        this.members = members;
+        this.hotTags = hotTags;
+        this.hotPercent = hotPercent;
+        this.connections = connections;
+        this.pipeline = pipeline;
+    }
+
+    public long getKeysStart() {
+        return keysStart;
+    }
+
+    public long getKeysCount() {
+        return keysCount;
+    }
+
+    public ValueSizeDistribution getValueSizes() {
+        return valueSizes;
+    }
+
+    public String getDataType() {
+        return dataType;
+    }
+
+    public int getMembers() {
+        return members;
+    }
+
+    public int getHotTags() {
+        return hotTags;
+    }
+
+    public int getHotPercent() {
+        return hotPercent;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getPipeline() {
+        return pipeline;
+    }
+}
@@ -0,0 +1,78 @@
+package com.balaclavalab.redis;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+
+public class MigrationSchedulerTest {
+
+    @Test
+    public void dispatchesHotSlotsFirst() {
+        long[] slotWeights = new long[ReshardCli.REDIS_SLOT_COUNT];
+        slotWeights[900] = 1000;
+        slotWeights[100] = 500;
+        slotWeights[50] = 10;
+        slotWeights[7000] = 1;
+        List<ReshardAction> reshardActions = new ArrayList<>(List.of(
+                new ReshardAction("a", 50, "c"),
+                new ReshardAction("b", 100, "c"),
+                new ReshardAction("a", 900, "c"),
+                new ReshardAction("b", 7000, "c")));
+
+        assertEquals(List.of(900, 100, 50, 7000), dispatch(reshardActions, slotWeights));
+    }
+
+    @Test
+    public void dispatchesInGivenOrderAcrossSourceNodes() {
+        List<ReshardAction> reshardActions = List.of(
+                new ReshardAction("a", 3000, "d"),
+                new ReshardAction("b", 20, "d"),
+                new ReshardAction("c", 10, "d"),
+                new ReshardAction("a", 5, "d"));
+
+        List<Integer> dispatchedSlots = Collections.synchronizedList(new ArrayList<>());
+        new MigrationScheduler(1, 1).run(reshardActions, reshardAction -> dispatchedSlots.add(reshardAction.getSlot()));
+
+        assertEquals(reshardActions.stream().map(ReshardAction::getSlot).collect(toList()), dispatchedSlots);
+    }
+
+    @Test
+    public void finishedTargetDoesNotPreemptHotterSlots() {
+        long[] slotWeights = new long[ReshardCli.REDIS_SLOT_COUNT];
+        slotWeights[1] = 100;
+        slotWeights[2] = 50;
+        slotWeights[3] = 10;
+        // b receives slot 1 first and has slot 3 queued, but slot 2 is hotter
+        List<ReshardAction> reshardActions = new ArrayList<>(List.of(
+                new ReshardAction("b", 3, "d"),
+                new ReshardAction("a", 2, "c"),
+                new ReshardAction("x", 1, "b")));
+
+        assertEquals(List.of(1, 2, 3), dispatch(reshardActions, slotWeights));
+    }
+
+    @Test
+    public void finishedTargetBreaksTiesAtEqualPriority() {
+        long[] slotWeights = new long[ReshardCli.REDIS_SLOT_COUNT];
+        slotWeights[1] = 100;
+        List<ReshardAction> reshardActions = new ArrayList<>(List.of(
+                new ReshardAction("x", 1, "b"),
+                new ReshardAction("a", 2, "c"),
+                new ReshardAction("b", 3, "d")));
+
+        assertEquals(List.of(1, 3, 2), dispatch(reshardActions, slotWeights));
+    }
+
+    // Orders and dispatches the actions like reshardSlots does, one migration at a time
+    private static List<Integer> dispatch(List<ReshardAction> reshardActions, long[] slotWeights) {
+        reshardActions.sort(ReshardCli.heaviestFirst(slotWeights));
+        List<Integer> dispatchedSlots = Collections.synchronizedList(new ArrayList<>());
+        new MigrationScheduler(1, 1).run(reshardActions, slotWeights, reshardAction -> dispatchedSlots.add(reshardAction.getSlot()));
+        return dispatchedSlots;
+    }
+}